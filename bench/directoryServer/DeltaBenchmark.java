@@ -0,0 +1,77 @@
+package directoryServer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Encoding and decoding the deltas relayed to partners and written to the
+ * journal, with Java serialization of the same record for comparison.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DeltaBenchmark {
+    private ProxyDirectoryRecord record;
+    private byte[] registration;
+    private byte[] checkIn;
+    private byte[] serialized;
+
+    @Setup
+    public void setUp() throws Exception {
+        record = Fixtures.signedRecord(1);
+        registration = new RecordDelta(record, false).toByteArray();
+        checkIn = new RecordDelta(record, true).toByteArray();
+        serialized = serializeRecord();
+    }
+
+    @Benchmark
+    public byte[] encodeRegistration() {
+        return new RecordDelta(record, false).toByteArray();
+    }
+
+    @Benchmark
+    public byte[] encodeCheckIn() {
+        return new RecordDelta(record, true).toByteArray();
+    }
+
+    @Benchmark
+    public RecordDelta decodeRegistration() {
+        return new RecordDelta(registration);
+    }
+
+    @Benchmark
+    public RecordDelta decodeCheckIn() {
+        return new RecordDelta(checkIn);
+    }
+
+    @Benchmark
+    public byte[] serializeRecord() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(record);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    @Benchmark
+    public Object deserializeRecord() throws IOException, ClassNotFoundException {
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serialized));
+        try {
+            return in.readObject();
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package directoryServer;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.xml.sax.SAXException;
+
+import edu.washington.cs.oneswarm.f2f.xml.XMLHelper;
+
+/**
+ * Listing and updating a database of 1k, 100k and 1M exit nodes.
+ *
+ * The database files are written to the working directory, which the
+ * "bench" target points at bench-work.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class DirectoryDBBenchmark {
+    // Changes an incremental listing covers.
+    private static final int RECENT = 100;
+
+    @Param({ "1000", "100000", "1000000" })
+    public int records;
+
+    private DirectoryDB db;
+    private long recent;
+    private ProxyDirectoryRecord registered;
+    private RecordDelta checkInDelta;
+
+    /**
+     * Each thread writes its responses to its own helper.
+     */
+    @State(Scope.Thread)
+    public static class Output {
+        XMLHelper xmlOut;
+
+        @Setup
+        public void setUp() throws SAXException {
+            xmlOut = new XMLHelper(new NullOutputStream());
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        Fixtures.clearDatabase();
+        db = new DirectoryDB(Fixtures.signerPool(), Fixtures.verifier());
+        // Records relayed from a partner are published without being
+        // verified again, so only one needs a valid signature. Generations
+        // are not consecutive, so the one the incremental listing starts
+        // from is taken before the last RECENT changes: the last RECENT - 1
+        // records and the signed one.
+        for (int i = 1; i <= records; i++) {
+            if (i == records - RECENT + 2) {
+                recent = db.generation();
+            }
+            db.merge(new RecordDelta(Fixtures.record(i), false));
+        }
+        registered = Fixtures.signedRecord(records + 1);
+        db.merge(new RecordDelta(registered, false));
+        checkInDelta = new RecordDelta(registered, true);
+        db.saveEdits();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Fixtures.clearDatabase();
+    }
+
+    /**
+     * The listing sent to a client that has not seen one before.
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void getUpdatesSinceFull(Output out) throws SAXException {
+        db.getUpdatesSince(0, out.xmlOut);
+    }
+
+    /**
+     * The listing sent to a client that polled a few changes ago.
+     */
+    @Benchmark
+    public void getUpdatesSinceRecent(Output out) throws SAXException {
+        db.getUpdatesSince(recent, out.xmlOut);
+    }
+
+    /**
+     * Rebuilding the signed snapshot and sampler, and compacting the
+     * journal when it is due.
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void saveEdits() throws Exception {
+        db.saveEdits();
+    }
+
+    // The changes nodes and partners make, run together with the expiry
+    // sweep: re-registrations of an already verified record, check-ins, and
+    // check-ins relayed by a partner.
+
+    @Benchmark
+    @Group("updates")
+    @GroupThreads(1)
+    public void reRegister(Output out) throws SAXException {
+        db.add(registered, out.xmlOut);
+    }
+
+    @Benchmark
+    @Group("updates")
+    @GroupThreads(2)
+    public void checkIn(Output out) throws SAXException {
+        db.checkIn(registered, out.xmlOut);
+    }
+
+    @Benchmark
+    @Group("updates")
+    @GroupThreads(1)
+    public void merge() {
+        db.merge(checkInDelta);
+    }
+
+    @Benchmark
+    @Group("updates")
+    @GroupThreads(1)
+    public void clean() {
+        db.clean(System.currentTimeMillis());
+    }
+}
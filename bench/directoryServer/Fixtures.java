@@ -0,0 +1,132 @@
+package directoryServer;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+
+import org.bouncycastle.util.encoders.Base64;
+
+/**
+ * Keys, records and stand-ins shared by the benchmarks.
+ */
+class Fixtures {
+    // Same size as the keys nodes register with, and as the server's own.
+    private static final int KEY_SIZE = 1024;
+    private static final int SIGNERS = Runtime.getRuntime().availableProcessors();
+
+    // Every benchmark record is made with this key. Generating a key per
+    // record would make a million record database take hours to set up.
+    static final KeyPair NODE_KEY = generateKey();
+    static final String PUBLIC_KEY = keyString(NODE_KEY.getPublic());
+    static final KeyPair SERVER_KEY = generateKey();
+
+    private Fixtures() {
+    }
+
+    static KeyPair generateKey() {
+        try {
+            KeyPairGenerator keygen = KeyPairGenerator.getInstance("RSA");
+            keygen.initialize(KEY_SIZE, new SecureRandom());
+            return keygen.generateKeyPair();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * A public key as registrations carry it: algorithm, format and the
+     * Base64 encoded key, separated by colons.
+     */
+    static String keyString(PublicKey key) {
+        return key.getAlgorithm() + ":" + key.getFormat() + ":"
+                + new String(Base64.encode(key.getEncoded()));
+    }
+
+    /**
+     * An exit node with a signature of the right length that does not
+     * verify. Only usable where signatures are not checked.
+     */
+    static ProxyDirectoryRecord record(long serviceId) {
+        ProxyDirectoryRecord record = new ProxyDirectoryRecord();
+        record.serviceId = serviceId;
+        record.publicKey = PUBLIC_KEY;
+        record.nickname = "node" + serviceId;
+        record.bandwidth = 100 + (int) (serviceId % 10000);
+        record.exitPolicy = "accept *:80,accept *:443,reject *:*";
+        record.version = "0.7." + (serviceId % 4);
+        record.signature = new byte[KEY_SIZE / 8];
+        return record;
+    }
+
+    /**
+     * An exit node signed with NODE_KEY.
+     */
+    static ProxyDirectoryRecord signedRecord(long serviceId) throws GeneralSecurityException {
+        ProxyDirectoryRecord record = record(serviceId);
+        Signature signer = Signature.getInstance("SHA1withRSA");
+        signer.initSign(NODE_KEY.getPrivate());
+        signer.update(record.hashBase());
+        record.signature = signer.sign();
+        return record;
+    }
+
+    static SignerPool signerPool() throws GeneralSecurityException {
+        return new SignerPool(SERVER_KEY.getPrivate(), SIGNERS);
+    }
+
+    static Signature verifier() throws GeneralSecurityException {
+        Signature verifier = Signature.getInstance("SHA1withRSA");
+        verifier.initVerify(SERVER_KEY.getPublic());
+        return verifier;
+    }
+
+    /**
+     * Remove the database files DirectoryDB keeps in the working directory,
+     * so each trial starts empty.
+     */
+    static void clearDatabase() {
+        new File(DirectoryDB.DATABASE_FILE).delete();
+        new File(DirectoryDB.JOURNAL_FILE).delete();
+    }
+
+    /**
+     * A response that throws away its body, and ignores headers.
+     */
+    static HttpServletResponse discardingResponse() {
+        final ServletOutputStream body = new ServletOutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        };
+        return (HttpServletResponse) Proxy.newProxyInstance(Fixtures.class.getClassLoader(),
+                new Class<?>[] { HttpServletResponse.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("getOutputStream")) {
+                            return body;
+                        }
+                        if (method.getReturnType() == boolean.class) {
+                            return false;
+                        }
+                        if (method.getReturnType() == int.class) {
+                            return 0;
+                        }
+                        return null;
+                    }
+                });
+    }
+}
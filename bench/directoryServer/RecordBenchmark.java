@@ -0,0 +1,74 @@
+package directoryServer;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.xml.sax.SAXException;
+
+import edu.washington.cs.oneswarm.f2f.xml.XMLHelper;
+
+/**
+ * The checks and encodings done on every registration and listing.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RecordBenchmark {
+    private ProxyDirectoryRecord record;
+    private ProxyDirectoryRecord forged;
+    private XMLHelper xmlOut;
+
+    @Setup
+    public void setUp() throws Exception {
+        record = Fixtures.signedRecord(1);
+        xmlOut = new XMLHelper(new NullOutputStream());
+        if (record.checkForErrors(true, xmlOut)) {
+            throw new IllegalStateException("The benchmark record does not verify.");
+        }
+        forged = Fixtures.signedRecord(1);
+        forged.signature[0]++;
+    }
+
+    /**
+     * The checks made on registration of a record that has been verified
+     * before, as on a node's restart.
+     */
+    @Benchmark
+    public boolean checkForErrors() throws SAXException {
+        return record.checkForErrors(true, xmlOut);
+    }
+
+    /**
+     * The checks made on registration of a record that has not been seen
+     * before. A bad signature is never cached, so it is verified each time.
+     */
+    @Benchmark
+    public boolean checkForErrorsUncached() throws SAXException {
+        return forged.checkForErrors(true, xmlOut);
+    }
+
+    /**
+     * The checks made on check-in, which leave out the signature.
+     */
+    @Benchmark
+    public boolean checkForErrorsWithoutSignature() throws SAXException {
+        return record.checkForErrors(false, xmlOut);
+    }
+
+    @Benchmark
+    public void fullXML() throws SAXException {
+        record.fullXML(xmlOut);
+    }
+
+    @Benchmark
+    public byte[] hashBase() {
+        return record.hashBase();
+    }
+}
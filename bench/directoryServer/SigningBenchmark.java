@@ -0,0 +1,79 @@
+package directoryServer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import edu.washington.cs.oneswarm.f2f.xml.XMLHelper;
+
+/**
+ * Signing a response and splicing the signature in place of the digest
+ * placeholder: for a response sent once, for a cached snapshot in every
+ * format, and for a streamed listing.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SigningBenchmark {
+    @Param({ "0", "100", "10000" })
+    public int records;
+
+    private SignerPool authority;
+    private Listing listing;
+    private HttpServletResponse resp;
+
+    @Setup
+    public void setUp() throws Exception {
+        authority = Fixtures.signerPool();
+        List<DirectoryRecord> list = new ArrayList<DirectoryRecord>();
+        for (int i = 1; i <= records; i++) {
+            list.add(Fixtures.record(i));
+        }
+        listing = new Listing(1, 0, list, Collections.<Long> emptyList());
+        resp = Fixtures.discardingResponse();
+    }
+
+    /**
+     * A listing built and signed for one request, as handleListAction does
+     * for incremental listings.
+     */
+    @Benchmark
+    public void response() throws Exception {
+        ResponseBuffer responseStream = ResponseBuffer.get();
+        XMLHelper xmlOut = new XMLHelper(responseStream);
+        listing.writeXML(xmlOut);
+        DirectorySnapshot.send(responseStream, xmlOut, authority, resp);
+    }
+
+    /**
+     * A listing built and signed once in every format, as saveEdits does.
+     */
+    @Benchmark
+    public DirectorySnapshot snapshot() throws Exception {
+        return DirectorySnapshot.listing(listing, authority);
+    }
+
+    /**
+     * A listing signed as it is sent.
+     */
+    @Benchmark
+    public void streamed() throws Exception {
+        SigningOutputStream out = new SigningOutputStream(new NullOutputStream(),
+                authority.newDigest());
+        ListingFormat.XML.write(listing, out);
+        out.finish(authority);
+    }
+}
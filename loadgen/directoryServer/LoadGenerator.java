@@ -0,0 +1,422 @@
+package directoryServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.IOUtils;
+import org.bouncycastle.util.encoders.Base64;
+
+import edu.washington.cs.oneswarm.f2f.xml.XMLHelper;
+
+/**
+ * Simulates a fleet of exit nodes, services and clients against a directory
+ * server on this machine, and reports the throughput and latency of each
+ * action.
+ *
+ * Each simulated node has its own RSA key and a properly signed record. It
+ * registers once, during the ramp up, and then checks in a few times per
+ * DirectoryDB.MAX_AGE as a real node would. Pollers fetch the listing,
+ * asking only for what changed since the generation they last saw. The
+ * schedule can be sped up to reach the request rate of a larger fleet
+ * without generating as many keys. With -batch, nodes are grouped into
+ * hosts of that many, which check in together with one signed heartbeat
+ * batch instead.
+ *
+ * All requests come from this machine, so the server should be started with
+ * -Ddirectory.register.exempt_loopback=true. Otherwise the registration
+ * rate limit refuses all but the first few registrations.
+ *
+ * Usage: LoadGenerator [-url http://127.0.0.1:7888/] [-nodes 2000]
+ * [-services 500] [-pollers 50] [-speedup 1] [-ramp 60] [-duration 600]
+ * [-threads 64] [-report 10] [-batch 0]
+ */
+public class LoadGenerator {
+    private static final String REGISTER = "register";
+    private static final String CHECK_IN = "checkin";
+    private static final String LIST = "list";
+    private static final String HEARTBEAT = "heartbeat";
+    // How often nodes check in, so that a lost check-in or two does not get
+    // them dropped.
+    private static final long CHECK_IN_INTERVAL = DirectoryDB.MAX_AGE / 4;
+    // How often pollers fetch the listing.
+    private static final long POLL_INTERVAL = 60 * 1000;
+    private static final int KEY_SIZE = 1024;
+    private static final Pattern GENERATION = Pattern.compile("<" + DirectoryDB.GENERATION
+            + ">(\\d+)</" + DirectoryDB.GENERATION + ">");
+    // The code of each status in a response, as XMLHelper.writeStatus
+    // writes them.
+    private static final Pattern STATUS = Pattern.compile("<Status>\\s*<Code>(\\d+)</Code>");
+    // Where the statuses start in a heartbeat ack: after the magic, version
+    // and SHA-1 hash of the batch.
+    private static final int ACK_HEADER = 4 + 1 + 20;
+
+    /**
+     * A simulated exit node or service.
+     */
+    private static class Node {
+        final long serviceId;
+        final PrivateKey key;
+        // Registers or checks in the node.
+        final byte[] body;
+
+        Node(long serviceId, PrivateKey key, byte[] body) {
+            this.serviceId = serviceId;
+            this.key = key;
+            this.body = body;
+        }
+    }
+
+    /**
+     * Requests made for one action.
+     */
+    private static class ActionStats {
+        final String action;
+        final Histogram latency = new Histogram();
+        final AtomicLong errors = new AtomicLong();
+        long lastCount;
+
+        ActionStats(String action) {
+            this.action = action;
+        }
+    }
+
+    private final String url;
+    private final ScheduledExecutorService scheduler;
+    private final Random random = new Random();
+    private final ActionStats register = new ActionStats(REGISTER);
+    private final ActionStats checkIn = new ActionStats(CHECK_IN);
+    private final ActionStats list = new ActionStats(LIST);
+    private final ActionStats heartbeat = new ActionStats(HEARTBEAT);
+    private final ActionStats[] actions = { register, checkIn, heartbeat, list };
+    private final double speedup;
+
+    LoadGenerator(String url, int threads, double speedup) {
+        this.url = url.endsWith("/") ? url : url + "/";
+        this.scheduler = Executors.newScheduledThreadPool(threads);
+        this.speedup = speedup;
+    }
+
+    /**
+     * Make the records of the fleet, each signed with its own key. Keys are
+     * generated on every core, since they take a while.
+     */
+    static List<Node> fleet(int nodes, int services) throws Exception {
+        ExecutorService keygen = Executors.newFixedThreadPool(Runtime.getRuntime()
+                .availableProcessors());
+        List<Future<Node>> made = new ArrayList<Future<Node>>();
+        final long firstId = new SecureRandom().nextInt(Integer.MAX_VALUE) + 1L;
+        for (int i = 0; i < nodes + services; i++) {
+            final long serviceId = firstId * 1000000 + i;
+            final boolean exitNode = i < nodes;
+            made.add(keygen.submit(new Callable<Node>() {
+                @Override
+                public Node call() throws Exception {
+                    return node(serviceId, exitNode);
+                }
+            }));
+        }
+        List<Node> fleet = new ArrayList<Node>();
+        for (Future<Node> node : made) {
+            fleet.add(node.get());
+        }
+        keygen.shutdown();
+        return fleet;
+    }
+
+    private static Node node(long serviceId, boolean exitNode) throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(KEY_SIZE);
+        KeyPair key = generator.generateKeyPair();
+
+        DirectoryRecord record;
+        if (exitNode) {
+            ProxyDirectoryRecord proxy = new ProxyDirectoryRecord();
+            proxy.bandwidth = 50 + (int) (serviceId % 5000);
+            proxy.exitPolicy = "allow *:80,allow *:443,reject *:*";
+            proxy.version = "0.7." + (serviceId % 4);
+            record = proxy;
+        } else {
+            record = new PortDirectoryRecord();
+        }
+        record.serviceId = serviceId;
+        record.publicKey = key.getPublic().getAlgorithm() + ":" + key.getPublic().getFormat()
+                + ":" + new String(Base64.encode(key.getPublic().getEncoded()));
+        record.nickname = "load" + serviceId;
+
+        Signature signer = Signature.getInstance("SHA1withRSA");
+        signer.initSign(key.getPrivate());
+        signer.update(record.hashBase());
+        record.signature = signer.sign();
+        return new Node(serviceId, key.getPrivate(), body(record));
+    }
+
+    /**
+     * The request body registering or checking in a record. A node sends the
+     * same body for both.
+     */
+    private static byte[] body(DirectoryRecord record) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        XMLHelper xmlOut = new XMLHelper(out);
+        record.fullXML(xmlOut);
+        xmlOut.close();
+        return out.toByteArray();
+    }
+
+    /**
+     * Schedule every node's registration and check-ins, and the pollers.
+     *
+     * @param batch
+     *            How many nodes check in together with a heartbeat batch, or
+     *            0 for each to check in on its own.
+     */
+    void start(List<Node> fleet, int pollers, long rampMillis, int batch) {
+        long checkInInterval = (long) (CHECK_IN_INTERVAL / speedup);
+        for (final Node node : fleet) {
+            // Registrations are spread over the ramp, and the check-ins that
+            // follow them over the check-in interval.
+            long registerAt = (long) (random.nextDouble() * rampMillis);
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    request(register, node.body, "");
+                }
+            }, registerAt, TimeUnit.MILLISECONDS);
+            if (batch > 0) {
+                continue;
+            }
+            long checkInAt = registerAt + (long) (random.nextDouble() * checkInInterval);
+            scheduler.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    request(checkIn, node.body, "");
+                }
+            }, checkInAt, checkInInterval, TimeUnit.MILLISECONDS);
+        }
+        for (int i = 0; batch > 0 && i < fleet.size(); i += batch) {
+            final List<Node> host = fleet.subList(i, Math.min(fleet.size(), i + batch));
+            long checkInAt = rampMillis + (long) (random.nextDouble() * checkInInterval);
+            scheduler.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        request(heartbeat, heartbeats(host), "");
+                    } catch (Exception e) {
+                        heartbeat.errors.incrementAndGet();
+                    }
+                }
+            }, checkInAt, checkInInterval, TimeUnit.MILLISECONDS);
+        }
+
+        long pollInterval = (long) (POLL_INTERVAL / speedup);
+        for (int i = 0; i < pollers; i++) {
+            scheduler.scheduleAtFixedRate(new Runnable() {
+                private long generation;
+
+                @Override
+                public void run() {
+                    byte[] listing = request(list, null, "&lastUpdate=" + generation);
+                    if (listing == null) {
+                        return;
+                    }
+                    Matcher m = GENERATION.matcher(new String(listing));
+                    if (m.find()) {
+                        generation = Long.parseLong(m.group(1));
+                    }
+                }
+            }, (long) (random.nextDouble() * pollInterval), pollInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * A heartbeat batch for the nodes of one host, each signed now.
+     */
+    private static byte[] heartbeats(List<Node> host) throws Exception {
+        long now = System.currentTimeMillis();
+        List<HeartbeatBatch.Heartbeat> heartbeats = new ArrayList<HeartbeatBatch.Heartbeat>();
+        for (Node node : host) {
+            Signature signer = Signature.getInstance("SHA1withRSA");
+            signer.initSign(node.key);
+            signer.update(HeartbeatBatch.signedBytes(node.serviceId, now));
+            heartbeats.add(new HeartbeatBatch.Heartbeat(node.serviceId, now, signer.sign()));
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        HeartbeatBatch.write(heartbeats, out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Make one request, recording how long it took. A request fails if the
+     * server answers with an HTTP error, or with any status other than
+     * success or pending verification: an error, busy (503) or, for a
+     * check-in, unregistered.
+     *
+     * @return The response body, or null if the request failed or the
+     *         listing had not changed.
+     */
+    private byte[] request(ActionStats stats, byte[] body, String params) {
+        long start = System.nanoTime();
+        try {
+            HttpURLConnection conn = (HttpURLConnection) new URL(url + "?action=" + stats.action
+                    + params).openConnection();
+            if (body != null) {
+                conn.setDoOutput(true);
+                conn.setRequestMethod("POST");
+                conn.setRequestProperty("Content-Type", stats == heartbeat
+                        ? HeartbeatBatch.CONTENT_TYPE : "text/xml");
+                conn.setFixedLengthStreamingMode(body.length);
+                OutputStream out = conn.getOutputStream();
+                out.write(body);
+                out.close();
+            }
+            int code = conn.getResponseCode();
+            InputStream in = code < 400 ? conn.getInputStream() : conn.getErrorStream();
+            // The response is read in full so the connection is reused.
+            byte[] response = in == null ? new byte[0] : IOUtils.toByteArray(in);
+            if (in != null) {
+                in.close();
+            }
+            if (code == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                return null;
+            }
+            if (code != HttpURLConnection.HTTP_OK
+                    || !(stats == heartbeat ? accepted(response) : succeeded(response))) {
+                stats.errors.incrementAndGet();
+                return null;
+            }
+            return response;
+        } catch (IOException e) {
+            stats.errors.incrementAndGet();
+            return null;
+        } finally {
+            stats.latency.recordSince(start);
+        }
+    }
+
+    /**
+     * Whether every status in an XML response is success or pending.
+     */
+    private static boolean succeeded(byte[] response) throws IOException {
+        Matcher m = STATUS.matcher(new String(response, XMLHelper.ENCODING));
+        while (m.find()) {
+            int status = Integer.parseInt(m.group(1));
+            if (status != XMLHelper.STATUS_SUCCESS && status != DirectoryDB.STATUS_PENDING) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Whether every heartbeat in an ack was accepted.
+     */
+    private static boolean accepted(byte[] ack) {
+        if (ack.length < ACK_HEADER + 2) {
+            return false;
+        }
+        int count = ((ack[ACK_HEADER] & 0xff) << 8) | (ack[ACK_HEADER + 1] & 0xff);
+        if (ack.length < ACK_HEADER + 2 + count * 9) {
+            return false;
+        }
+        for (int i = 0; i < count; i++) {
+            // Each heartbeat's serviceId is followed by its status.
+            if (ack[ACK_HEADER + 2 + i * 9 + 8] != HeartbeatBatch.ACCEPTED) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Print the requests made for each action since the last report, and
+     * the latencies so far.
+     */
+    void report(double seconds) {
+        for (ActionStats stats : actions) {
+            long count = stats.latency.count();
+            System.out.println(String.format(
+                    "%-8s %9d requests %9.1f/s  p50 %7dus  p99 %7dus  p999 %7dus  max %7dus"
+                            + "  errors %d", stats.action, count, (count - stats.lastCount)
+                            / seconds, stats.latency.percentile(0.5),
+                    stats.latency.percentile(0.99), stats.latency.percentile(0.999),
+                    stats.latency.max(), stats.errors.get()));
+            stats.lastCount = count;
+        }
+        System.out.println();
+    }
+
+    void stop() {
+        scheduler.shutdownNow();
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<String, String>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("-")) {
+                System.err.println("Unexpected argument: " + args[i]);
+                return;
+            }
+            options.put(args[i].substring(1), args[i + 1]);
+        }
+        String url = option(options, "url", "http://127.0.0.1:7888/");
+        int nodes = Integer.parseInt(option(options, "nodes", "2000"));
+        int services = Integer.parseInt(option(options, "services", "500"));
+        int pollers = Integer.parseInt(option(options, "pollers", "50"));
+        double speedup = Double.parseDouble(option(options, "speedup", "1"));
+        long ramp = Long.parseLong(option(options, "ramp", "60")) * 1000;
+        long duration = Long.parseLong(option(options, "duration", "600")) * 1000;
+        int threads = Integer.parseInt(option(options, "threads", "64"));
+        long report = Long.parseLong(option(options, "report", "10")) * 1000;
+        int batch = Integer.parseInt(option(options, "batch", "0"));
+
+        System.out.println("Generating keys for " + nodes + " exit nodes and " + services
+                + " services...");
+        List<Node> fleet = fleet(nodes, services);
+        System.out.println("Running against " + url + " for " + duration / 1000 + "s.");
+
+        LoadGenerator generator = new LoadGenerator(url, threads, speedup);
+        long start = System.currentTimeMillis();
+        generator.start(fleet, pollers, ramp, batch);
+        long last = start;
+        while (System.currentTimeMillis() - start < duration) {
+            Thread.sleep(Math.max(1, Math.min(report, duration
+                    - (System.currentTimeMillis() - start))));
+            long now = System.currentTimeMillis();
+            generator.report((now - last) / 1000.0);
+            last = now;
+        }
+        generator.stop();
+        System.out.println("Overall:");
+        for (ActionStats stats : generator.actions) {
+            stats.lastCount = 0;
+        }
+        generator.report((System.currentTimeMillis() - start) / 1000.0);
+    }
+
+    private static String option(Map<String, String> options, String name, String fallback) {
+        String value = options.get(name);
+        return value != null ? value : fallback;
+    }
+}
@@ -0,0 +1,321 @@
+package directoryServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.io.IOUtils;
+import org.bouncycastle.util.encoders.Base64;
+
+/**
+ * Periodically repairs differences between partners that the relayed changes
+ * missed, such as those made while one of them was down.
+ *
+ * Each instance walks down its partners' Merkle trees from the root, asking
+ * only for the children of nodes that differ from its own, and then fetches
+ * the records in the buckets that differ. Traffic therefore grows with how
+ * far the instances have drifted apart rather than with the directory.
+ * Records missing locally, or superseded by the partner's, are merged, so
+ * two instances holding different records for a serviceId both settle on
+ * the same one. Records the partner is missing are sent when the partner
+ * runs its own exchange.
+ *
+ * Buckets also carry the removals remembered in them. A record removed here
+ * is not merged back from a partner that still holds it, and the partner
+ * removes its copy when it next fetches the bucket.
+ *
+ * Requests are signed like the bundles partners push, over the request and
+ * the time it was made, and are only answered if the signature is valid and
+ * the time is close to ours. Anyone else would otherwise be able to have
+ * this instance walk its tree and sign answers for them.
+ */
+class AntiEntropy {
+	static final String DIGEST_PATH = "digest";
+	static final String BUCKET_PATH = "bucket";
+	static final String PARAM_NODES = "nodes";
+	static final String PARAM_BUCKETS = "buckets";
+	static final String PARAM_TIME = "time";
+	static final String PARAM_SIGNATURE = "sig";
+	// Most tree nodes or buckets asked for in one request, which is as many
+	// as there are in the widest level of the tree.
+	static final int MAX_REQUEST = MerkleDigest.LEAVES;
+	// Furthest a request's time may be from ours, in milliseconds.
+	private static final long MAX_REQUEST_SKEW = 5 * 60 * 1000;
+	private static final int BUCKETS_PER_REQUEST = 32;
+	private static final int TIMEOUT = 10 * 1000;
+
+	private final DirectoryDB db;
+	private final SignerPool authority;
+	private final Signature verifier;
+
+	AntiEntropy(DirectoryDB db, SignerPool authority, Signature verifier) {
+		this.db = db;
+		this.authority = authority;
+		this.verifier = verifier;
+	}
+
+	/**
+	 * Whether a request was signed by a partner, recently.
+	 *
+	 * @param path
+	 *            The path asked for, DIGEST_PATH or BUCKET_PATH.
+	 * @param param
+	 *            The name of the parameter listing the indices.
+	 * @param value
+	 *            The indices asked for, as sent.
+	 */
+	boolean authentic(String path, String param, String value, String time, String signature) {
+		if (value == null || time == null || signature == null) {
+			return false;
+		}
+		try {
+			long sent = Long.parseLong(time);
+			if (Math.abs(System.currentTimeMillis() - sent) > MAX_REQUEST_SKEW) {
+				return false;
+			}
+			byte[] decoded = Base64.decode(signature);
+			synchronized (this.verifier) {
+				this.verifier.update(signedRequest(path, param, value, sent));
+				return this.verifier.verify(decoded);
+			}
+		} catch (SignatureException e) {
+			return false;
+		} catch (RuntimeException e) {
+			// Not a number, or not Base64.
+			return false;
+		}
+	}
+
+	/**
+	 * The bytes signed for a request.
+	 */
+	private static byte[] signedRequest(String path, String param, String value, long time) {
+		try {
+			return (path + "?" + param + "=" + value + "&" + PARAM_TIME + "=" + time)
+					.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Answer a request for the hashes of tree nodes.
+	 *
+	 * @return The signed response, or null if the request is invalid.
+	 */
+	byte[] answerNodes(String param) throws SignatureException {
+		List<Integer> nodes = parseIndices(param, 1, 2 * MerkleDigest.LEAVES);
+		if (nodes == null) {
+			return null;
+		}
+		long[] hashes = this.db.getDigest().nodes(nodes);
+		ByteBuffer out = ByteBuffer.allocate(4 + 8 * hashes.length);
+		out.putInt(hashes.length);
+		for (long h : hashes) {
+			out.putLong(h);
+		}
+		return sign(out.array());
+	}
+
+	/**
+	 * Answer a request for the records in buckets.
+	 *
+	 * @return The signed response, or null if the request is invalid.
+	 */
+	byte[] answerBuckets(String param) throws SignatureException {
+		List<Integer> buckets = parseIndices(param, 0, MerkleDigest.LEAVES);
+		if (buckets == null) {
+			return null;
+		}
+		List<RecordDelta> deltas = new ArrayList<RecordDelta>();
+		for (int b : buckets) {
+			for (DirectoryRecord r : this.db.getDigest().bucket(b)) {
+				deltas.add(new RecordDelta(r, false));
+			}
+			deltas.addAll(this.db.getTombstones().bucket(b));
+		}
+		return sign(DeltaBundle.encode(deltas));
+	}
+
+	/**
+	 * Bring this instance up to date with a partner.
+	 *
+	 * @param partner
+	 *            The coordination URL of the partner.
+	 * @return The number of records merged.
+	 */
+	int reconcile(URL partner) throws IOException {
+		MerkleDigest digest = this.db.getDigest();
+		List<Integer> differing = new ArrayList<Integer>();
+		List<Integer> frontier = new ArrayList<Integer>(Arrays.asList(1));
+		while (!frontier.isEmpty()) {
+			long[] theirs = fetchNodes(partner, frontier);
+			long[] ours = digest.nodes(frontier);
+			List<Integer> next = new ArrayList<Integer>();
+			for (int i = 0; i < ours.length; i++) {
+				if (theirs[i] == ours[i]) {
+					continue;
+				}
+				int node = frontier.get(i);
+				if (node >= MerkleDigest.LEAVES) {
+					differing.add(node - MerkleDigest.LEAVES);
+				} else {
+					next.add(2 * node);
+					next.add(2 * node + 1);
+				}
+			}
+			frontier = next;
+		}
+
+		int merged = 0;
+		for (int i = 0; i < differing.size(); i += BUCKETS_PER_REQUEST) {
+			List<Integer> buckets = differing.subList(i, Math.min(differing.size(), i
+					+ BUCKETS_PER_REQUEST));
+			for (RecordDelta d : fetchBuckets(partner, buckets)) {
+				DirectoryRecord ours = this.db.get(d.serviceId);
+				if (d.type == RecordDelta.TYPE.REMOVE || ours == null
+						|| d.record.supersedes(ours)) {
+					if (this.db.merge(d)) {
+						merged++;
+					}
+				}
+			}
+		}
+		if (merged > 0) {
+			this.db.saveEditsLater();
+		}
+		return merged;
+	}
+
+	private long[] fetchNodes(URL partner, List<Integer> nodes) throws IOException {
+		ByteBuffer in = ByteBuffer.wrap(fetch(partner, DIGEST_PATH, PARAM_NODES, nodes));
+		try {
+			if (in.getInt() != nodes.size()) {
+				throw new IOException("Partner answered with the wrong number of nodes.");
+			}
+			long[] hashes = new long[nodes.size()];
+			for (int i = 0; i < hashes.length; i++) {
+				hashes[i] = in.getLong();
+			}
+			return hashes;
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Truncated digest from partner.");
+		}
+	}
+
+	private List<RecordDelta> fetchBuckets(URL partner, List<Integer> buckets) throws IOException {
+		List<RecordDelta> deltas = DeltaBundle.decode(fetch(partner, BUCKET_PATH, PARAM_BUCKETS,
+				buckets));
+		if (deltas == null) {
+			throw new IOException("Malformed bucket contents from partner.");
+		}
+		return deltas;
+	}
+
+	/**
+	 * Make a request of a partner and check the signature on its answer.
+	 *
+	 * @return The verified body of the answer.
+	 */
+	private byte[] fetch(URL partner, String path, String param, List<Integer> indices)
+			throws IOException {
+		StringBuilder value = new StringBuilder();
+		for (int i = 0; i < indices.size(); i++) {
+			if (i > 0) {
+				value.append(',');
+			}
+			value.append(indices.get(i));
+		}
+		long time = System.currentTimeMillis();
+		byte[] signature;
+		try {
+			signature = this.authority.sign(signedRequest(path, param, value.toString(), time));
+		} catch (SignatureException e) {
+			throw new IOException("Could not sign the request: " + e.getMessage());
+		}
+		StringBuilder query = new StringBuilder(partner.toString());
+		query.append('/').append(path).append('?').append(param).append('=').append(value);
+		query.append('&').append(PARAM_TIME).append('=').append(time);
+		query.append('&').append(PARAM_SIGNATURE).append('=').append(
+				URLEncoder.encode(new String(Base64.encode(signature), "US-ASCII"), "UTF-8"));
+		HttpURLConnection conn = (HttpURLConnection) new URL(query.toString()).openConnection();
+		conn.setConnectTimeout(TIMEOUT);
+		conn.setReadTimeout(TIMEOUT);
+		if (conn.getResponseCode() != HttpURLConnection.HTTP_OK) {
+			InputStream error = conn.getErrorStream();
+			if (error != null) {
+				error.close();
+			}
+			throw new IOException("Partner returned " + conn.getResponseCode());
+		}
+		InputStream in = conn.getInputStream();
+		byte[] message;
+		try {
+			message = IOUtils.toByteArray(in);
+		} finally {
+			in.close();
+		}
+
+		byte[][] signed = DeltaBundle.unwrap(message);
+		if (signed == null) {
+			throw new IOException("Malformed answer from partner.");
+		}
+		try {
+			synchronized (this.verifier) {
+				this.verifier.update(signed[1]);
+				if (!this.verifier.verify(signed[0])) {
+					throw new IOException("Invalid signature from partner.");
+				}
+			}
+		} catch (SignatureException e) {
+			throw new IOException("Invalid signature from partner.");
+		}
+		return signed[1];
+	}
+
+	private byte[] sign(byte[] body) throws SignatureException {
+		return DeltaBundle.wrap(body, this.authority.sign(body));
+	}
+
+	/**
+	 * Parse a comma separated list of indices in [min, max), dropping any
+	 * repeated.
+	 *
+	 * @return The distinct indices, or null if the list is malformed or too
+	 *         long.
+	 */
+	private static List<Integer> parseIndices(String param, int min, int max) {
+		if (param == null || param.length() == 0) {
+			return null;
+		}
+		String[] parts = param.split(",");
+		if (parts.length > MAX_REQUEST) {
+			return null;
+		}
+		Set<Integer> indices = new LinkedHashSet<Integer>(parts.length);
+		try {
+			for (String part : parts) {
+				int i = Integer.parseInt(part);
+				if (i < min || i >= max) {
+					return null;
+				}
+				indices.add(i);
+			}
+		} catch (NumberFormatException e) {
+			return null;
+		}
+		return new ArrayList<Integer>(indices);
+	}
+}
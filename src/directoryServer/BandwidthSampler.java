@@ -0,0 +1,109 @@
+package directoryServer;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Picks exit nodes at random in proportion to their advertised bandwidth,
+ * the way clients choose exit nodes, so that they can ask for a few nodes
+ * instead of fetching the whole listing.
+ *
+ * Uses Vose's alias method: building the table takes time linear in the
+ * number of exit nodes, and each pick takes constant time. A table is built
+ * for each generation of the listing.
+ */
+class BandwidthSampler {
+    private static final ThreadLocal<Random> RANDOM = new ThreadLocal<Random>() {
+        @Override
+        protected Random initialValue() {
+            return new Random();
+        }
+    };
+
+    final long generation;
+    private final DirectoryRecord[] records;
+    // The chance of keeping each column's own record rather than its alias.
+    private final double[] keep;
+    private final int[] alias;
+
+    BandwidthSampler(long generation, List<DirectoryRecord> exitNodes) {
+        this.generation = generation;
+        int n = exitNodes.size();
+        records = exitNodes.toArray(new DirectoryRecord[n]);
+        keep = new double[n];
+        alias = new int[n];
+
+        double total = 0;
+        for (DirectoryRecord r : records) {
+            total += Math.max(0, ((ProxyDirectoryRecord) r).bandwidth);
+        }
+        // Scaled so that the average column is 1.
+        double[] scaled = new double[n];
+        int[] small = new int[n];
+        int[] large = new int[n];
+        int smallCount = 0;
+        int largeCount = 0;
+        for (int i = 0; i < n; i++) {
+            int bandwidth = Math.max(0, ((ProxyDirectoryRecord) records[i]).bandwidth);
+            scaled[i] = total > 0 ? bandwidth * n / total : 1;
+            if (scaled[i] < 1) {
+                small[smallCount++] = i;
+            } else {
+                large[largeCount++] = i;
+            }
+        }
+        while (smallCount > 0 && largeCount > 0) {
+            int s = small[--smallCount];
+            int l = large[--largeCount];
+            keep[s] = scaled[s];
+            alias[s] = l;
+            scaled[l] = scaled[l] + scaled[s] - 1;
+            if (scaled[l] < 1) {
+                small[smallCount++] = l;
+            } else {
+                large[largeCount++] = l;
+            }
+        }
+        // What is left over is 1 but for rounding.
+        while (largeCount > 0) {
+            keep[large[--largeCount]] = 1;
+        }
+        while (smallCount > 0) {
+            keep[small[--smallCount]] = 1;
+        }
+    }
+
+    int size() {
+        return records.length;
+    }
+
+    DirectoryRecord next(Random random) {
+        int column = random.nextInt(records.length);
+        return random.nextDouble() < keep[column] ? records[column] : records[alias[column]];
+    }
+
+    /**
+     * Pick up to n distinct exit nodes.
+     *
+     * @param n
+     *            The number wanted.
+     * @param attempts
+     *            The most picks to make, since picking distinct nodes can
+     *            take many tries when a few nodes carry most of the weight.
+     */
+    List<DirectoryRecord> sample(int n, int attempts) {
+        Set<DirectoryRecord> picked = new LinkedHashSet<DirectoryRecord>();
+        if (records.length == 0) {
+            return new ArrayList<DirectoryRecord>(picked);
+        }
+        n = Math.min(n, records.length);
+        Random random = RANDOM.get();
+        for (int i = 0; i < attempts && picked.size() < n; i++) {
+            picked.add(next(random));
+        }
+        return new ArrayList<DirectoryRecord>(picked);
+    }
+}
@@ -0,0 +1,72 @@
+package directoryServer;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An input stream that ends after a fixed number of bytes, so that an
+ * oversized request body is cut off rather than read into memory. Whether
+ * the limit was reached can be checked afterwards to tell a truncated body
+ * from a malformed one.
+ */
+class BoundedInputStream extends FilterInputStream {
+    private long remaining;
+    private boolean exceeded;
+
+    BoundedInputStream(InputStream in, long limit) {
+        super(in);
+        this.remaining = limit;
+    }
+
+    /** Whether the body went on past the limit. */
+    boolean exceeded() {
+        return exceeded;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (remaining <= 0) {
+            return end();
+        }
+        int b = super.read();
+        if (b >= 0) {
+            remaining--;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (remaining <= 0) {
+            return end();
+        }
+        int n = super.read(b, off, (int) Math.min(len, remaining));
+        if (n > 0) {
+            remaining -= n;
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = super.skip(Math.min(n, remaining));
+        remaining -= skipped;
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    /**
+     * Called once the limit has been read: see whether anything follows.
+     */
+    private int end() throws IOException {
+        if (!exceeded && super.read() >= 0) {
+            exceeded = true;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,98 @@
+package directoryServer;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded log of the changes made to the directory, used to answer
+ * incremental listing requests.
+ *
+ * Every change is stamped with a generation number. Generations are seeded
+ * from the clock (milliseconds * 1000) and never go backwards, so a generation
+ * handed out before a restart is always older than anything logged after it.
+ */
+class ChangeLog {
+    enum TYPE {
+        ADD,
+        CHECKIN,
+        REMOVE
+    };
+
+    static class Change {
+        final long generation;
+        final TYPE type;
+        final long serviceId;
+        final DirectoryRecord record;
+
+        private Change(long generation, TYPE type, DirectoryRecord record) {
+            this.generation = generation;
+            this.type = type;
+            this.serviceId = record.serviceId;
+            this.record = record;
+        }
+    }
+
+    private final int capacity;
+    private final ArrayDeque<Change> changes;
+    private long generation;
+    // Changes made at or before this generation are no longer in the log.
+    private long floor;
+
+    ChangeLog(int capacity) {
+        this.capacity = capacity;
+        this.changes = new ArrayDeque<Change>(capacity);
+        this.generation = System.currentTimeMillis() * 1000;
+        this.floor = generation;
+    }
+
+    /**
+     * Record a change to the directory.
+     *
+     * @return The generation of the change.
+     */
+    synchronized long append(TYPE type, DirectoryRecord record) {
+        generation = Math.max(generation + 1, System.currentTimeMillis() * 1000);
+        if (changes.size() == capacity) {
+            floor = changes.removeFirst().generation;
+        }
+        changes.addLast(new Change(generation, type, record));
+        return generation;
+    }
+
+    synchronized long generation() {
+        return generation;
+    }
+
+    /**
+     * Whether all changes made after the given generation are still known.
+     */
+    synchronized boolean covers(long since) {
+        return since >= floor && since <= generation;
+    }
+
+    /**
+     * Collect the latest change to each service made after a generation.
+     *
+     * @return The changes keyed by serviceId, newest first, or null if the
+     *         log no longer covers that generation.
+     */
+    synchronized Map<Long, Change> since(long since) {
+        if (!covers(since)) {
+            return null;
+        }
+        Map<Long, Change> latest = new LinkedHashMap<Long, Change>();
+        Iterator<Change> newestFirst = changes.descendingIterator();
+        while (newestFirst.hasNext()) {
+            Change c = newestFirst.next();
+            if (c.generation <= since) {
+                break;
+            }
+            if (!latest.containsKey(c.serviceId)) {
+                latest.put(c.serviceId, c);
+            }
+        }
+        return latest;
+    }
+}
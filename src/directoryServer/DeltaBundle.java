@@ -0,0 +1,109 @@
+package directoryServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A group of RecordDeltas sent between partner instances as a single signed
+ * message.
+ *
+ * A bundle is a count followed by that many length prefixed deltas. On the
+ * wire it is preceded by the length of its signature and the signature.
+ */
+public class DeltaBundle {
+	// Bundles or deltas claiming to be longer than this are rejected.
+	private static final int MAX_LENGTH = 16 * 1024 * 1024;
+
+	public static byte[] encode(List<RecordDelta> deltas) {
+		try {
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(buffer);
+			List<byte[]> encoded = new ArrayList<byte[]>(deltas.size());
+			for (RecordDelta d : deltas) {
+				if (d.valid) {
+					encoded.add(d.toByteArray());
+				}
+			}
+			out.writeInt(encoded.size());
+			for (byte[] delta : encoded) {
+				out.writeInt(delta.length);
+				out.write(delta);
+			}
+			out.flush();
+			return buffer.toByteArray();
+		} catch (IOException e) {
+			// Not thrown by in-memory streams.
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * @return The deltas in the bundle, or null if it is malformed.
+	 */
+	public static List<RecordDelta> decode(byte[] bundle) {
+		try {
+			ByteBuffer in = ByteBuffer.wrap(bundle);
+			int count = in.getInt();
+			if (count < 0 || count > bundle.length) {
+				return null;
+			}
+			List<RecordDelta> deltas = new ArrayList<RecordDelta>(count);
+			for (int i = 0; i < count; i++) {
+				int length = in.getInt();
+				if (length <= 0 || length > in.remaining()) {
+					return null;
+				}
+				byte[] delta = new byte[length];
+				in.get(delta);
+				RecordDelta d = new RecordDelta(delta);
+				if (d.valid) {
+					deltas.add(d);
+				}
+			}
+			return deltas;
+		} catch (BufferUnderflowException e) {
+			return null;
+		} catch (IndexOutOfBoundsException e) {
+			// A truncated delta.
+			return null;
+		}
+	}
+
+	/**
+	 * Frame a signed bundle for sending.
+	 */
+	public static byte[] wrap(byte[] bundle, byte[] signature) {
+		ByteBuffer out = ByteBuffer.allocate(4 + signature.length + bundle.length);
+		out.putInt(signature.length);
+		out.put(signature);
+		out.put(bundle);
+		return out.array();
+	}
+
+	/**
+	 * Split a framed message into its signature and bundle.
+	 *
+	 * @return The signature and the bundle, or null if the message is
+	 *         malformed.
+	 */
+	public static byte[][] unwrap(byte[] message) {
+		if (message.length < 4 || message.length > MAX_LENGTH) {
+			return null;
+		}
+		ByteBuffer in = ByteBuffer.wrap(message);
+		int sigLength = in.getInt();
+		if (sigLength <= 0 || sigLength > in.remaining()) {
+			return null;
+		}
+		byte[] signature = new byte[sigLength];
+		in.get(signature);
+		byte[] bundle = new byte[in.remaining()];
+		in.get(bundle);
+		return new byte[][] { signature, bundle };
+	}
+}
@@ -5,18 +5,23 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
 import java.security.Signature;
+import java.security.SignatureException;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.PriorityQueue;
 import java.util.Timer;
 import java.util.TimerTask;
-import java.util.concurrent.FutureTask;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.xml.parsers.ParserConfigurationException;
 
@@ -27,19 +32,99 @@ import directoryServer.RecordDelta.TYPE;
 import edu.washington.cs.oneswarm.f2f.xml.XMLHelper;
 
 public class DirectoryDB {
-    private static final String DATABASE_FILE = "knownExitNodes.xml";
+    static final String DATABASE_FILE = "knownExitNodes.xml";
+    static final String JOURNAL_FILE = "knownExitNodes.journal";
+    // Journal entries allowed to build up before the database file is rewritten.
+    private static final int COMPACTION_THRESHOLD = 10000;
     private static final String COORDINATION_FILE = "knownPartners.txt";
     // The max age that a ExitNode registration may have before it is deleted.
-    private static final int MAX_AGE = 60 * 60 * 1000;
+    static final int MAX_AGE = 60 * 60 * 1000;
     private static final int GRACE_PERIOD = 60 * 1000;
-    private final Map<Long, DirectoryRecord> registeredKeys;
-    private PriorityQueue<DirectoryRecord> readableExitNodeList;
-    private final PriorityQueue<DirectoryRecord> mutableExitNodeList;
+    // How often the cleaner looks for expired records.
+    private static final int CLEAN_INTERVAL = 1000;
+    // How often the listing is rebuilt, if anything has changed.
+    private static final int SAVE_INTERVAL = Integer.getInteger("directory.save.interval", 1000);
+    // How often check-ins are written to the journal and sent to partners.
+    private static final int HEARTBEAT_INTERVAL = Integer.getInteger("directory.checkin.flush",
+            5000);
+    // Furthest a signed heartbeat's timestamp may be from the clock here.
+    private static final int MAX_HEARTBEAT_SKEW = 10 * 60 * 1000;
+    // How many changes are kept for answering incremental listings.
+    private static final int CHANGE_LOG_SIZE = 16 * 1024;
+    // How many distinct filtered listings are cached.
+    private static final int QUERY_CACHE_SIZE = 256;
+    // Most picks made to find distinct exit nodes for each one sampled.
+    private static final int SAMPLE_ATTEMPTS = 8;
+    // Locks serializing changes to the records of serviceIds that share one.
+    private static final int RECORD_LOCKS = 64;
+    // Tags used by listings beyond those describing records.
+    static final String GENERATION = "Generation";
+    static final String DELTA_FROM = "DeltaFrom";
+    static final String REMOVED = "Removed";
+    static final String NEXT_CURSOR = "NextCursor";
+    // Tags only used in the database file.
+    static final String CREATED = "Created";
+    static final String LAST_CHECKIN = "LastCheckin";
+    static final String LAST_HEARTBEAT = "LastHeartbeat";
+    // Registration statuses beyond those defined by XMLHelper.
+    static final int STATUS_PENDING = 202;
+    static final int ERROR_BUSY = 503;
+    // Time taken by operations on the database.
+    private static final Histogram ADD_LATENCY = Metrics.histogram("db.add");
+    private static final Histogram CHECK_IN_LATENCY = Metrics.histogram("db.checkin");
+    private static final Histogram SAVE_LATENCY = Metrics.histogram("db.save");
+    private static final Histogram COMPACT_LATENCY = Metrics.histogram("db.compact");
+    private static final Histogram CLEAN_LATENCY = Metrics.histogram("db.clean");
+    private static final AtomicLong EXPIRED = Metrics.counter("db.expired");
+    private static final AtomicLong MERGED = Metrics.counter("db.merged");
+    private static final Histogram HEARTBEAT_LATENCY = Metrics.histogram("db.heartbeat_flush");
+    private static final AtomicLong HEARTBEATS = Metrics.counter("db.heartbeats");
+    private static final AtomicLong HEARTBEATS_REFUSED = Metrics.counter("db.heartbeats_refused");
+    // Records by serviceId, and the same records newest first. Records are
+    // added to and removed from the map before the list.
+    private final ConcurrentHashMap<Long, DirectoryRecord> registeredKeys;
+    private final ConcurrentSkipListSet<DirectoryRecord> exitNodeList;
+    // A record's serviceId's lock is held while it is published, replaced
+    // or removed, so the map, list, indexes, digest and expiry index all
+    // end up holding the same record for it.
+    private final Object[] recordLocks = new Object[RECORD_LOCKS];
     private final ServiceCoordinator syncService;
+    private final SignerPool authority;
+    // Signed copy of the full listing, rebuilt by saveEdits.
+    private volatile DirectorySnapshot snapshot;
+    // Bandwidth weighted picker over the exit nodes, rebuilt by saveEdits.
+    private volatile BandwidthSampler sampler;
+    // Set when there are changes the snapshot and sampler don't reflect yet.
+    private final AtomicBoolean edited = new AtomicBoolean();
+    private final ChangeLog changes = new ChangeLog(CHANGE_LOG_SIZE);
+    private final ExpiryIndex expiry = new ExpiryIndex();
+    private final MerkleDigest digest = new MerkleDigest();
+    private final RecordIndex index = new RecordIndex();
+    // Records removed here or by partners, kept for MAX_AGE and a grace
+    // period so that partners still holding them do not bring them back.
+    private final Tombstones tombstones = new Tombstones();
+    // Records checked in since the heartbeats were last flushed, by
+    // serviceId. Each record holds its latest check-in time, so repeated
+    // check-ins are only written once. Those checked in here are also sent
+    // to partners, and those merged from partners are not.
+    private final ConcurrentHashMap<Long, DirectoryRecord> heartbeats = new ConcurrentHashMap<Long, DirectoryRecord>();
+    private final ConcurrentHashMap<Long, DirectoryRecord> localHeartbeats = new ConcurrentHashMap<Long, DirectoryRecord>();
+    // Signed filtered listings by query and format. Entries are rebuilt once
+    // the generation has moved on.
+    private final ConcurrentHashMap<String, DirectorySnapshot> queryCache = new ConcurrentHashMap<String, DirectorySnapshot>();
+    // Null until the saved state has been loaded.
+    private RecordJournal journal;
+    // Removals copied into the journal by the last compaction, which don't
+    // count towards the next.
+    private int carriedRemovals;
 
-    public DirectoryDB(Signature authority, Signature verifier) throws ParserConfigurationException, SAXException, IOException {
-        mutableExitNodeList = new PriorityQueue<DirectoryRecord>();
-        registeredKeys = new HashMap<Long, DirectoryRecord>();
+    public DirectoryDB(SignerPool authority, Signature verifier) throws ParserConfigurationException, SAXException, IOException {
+        this.authority = authority;
+        registeredKeys = new ConcurrentHashMap<Long, DirectoryRecord>();
+        exitNodeList = new ConcurrentSkipListSet<DirectoryRecord>();
+        for (int i = 0; i < RECORD_LOCKS; i++) {
+            recordLocks[i] = new Object();
+        }
         try {
             File dbFile = new File(DATABASE_FILE);
             if (!dbFile.exists()) {
@@ -53,6 +138,17 @@ public class DirectoryDB {
         } catch (FileNotFoundException e) {
             e.printStackTrace();
         }
+
+        // Replay the changes made since the database file was written, then
+        // fold them into a fresh copy of it.
+        RecordJournal saved = new RecordJournal(new File(JOURNAL_FILE));
+        for (RecordDelta d : saved.replay()) {
+            merge(d);
+        }
+        saved.open();
+        this.journal = saved;
+        compact();
+        saveEdits();
         
        	File coordinationFile = new File(COORDINATION_FILE);
        	if (coordinationFile.exists()) {
@@ -61,118 +157,599 @@ public class DirectoryDB {
         	this.syncService = null;
         }
 
+        Metrics.gauge("db.records", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return registeredKeys.size();
+            }
+        });
+        Metrics.gauge("db.heartbeats_pending", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return heartbeats.size();
+            }
+        });
+        Metrics.gauge("db.journal", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return journal == null ? 0 : journal.size();
+            }
+        });
+        Metrics.gauge("db.tombstones", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return tombstones.size();
+            }
+        });
+
         Thread dbClean = new Thread(new DBCleaner());
         dbClean.setDaemon(true);
         dbClean.start();
     }
 
     public void add(DirectoryRecord node, XMLHelper xmlOut) throws SAXException {
-        if (node.checkForErrors(true, xmlOut)) {
-            return;
-        }
+        long start = System.nanoTime();
+        try {
+            if (node.checkForErrors(true, xmlOut)) {
+                return;
+            }
 
-        synchronized (registeredKeys) {
-            if (registeredKeys.containsKey(node.serviceId)) {
-                DirectoryRecord oldNode = registeredKeys.get(node.serviceId);
+            DirectoryRecord oldNode = registeredKeys.get(node.serviceId);
+            if (oldNode != null) {
                 if (!oldNode.publicKey.equals(node.publicKey)) {
                     xmlOut.writeStatus(XMLHelper.ERROR_DUPLICATE_SERVICE_ID,
                             "Key already exists in registry.");
                     return;
                 }
-                remove(oldNode);
+                if (Arrays.equals(oldNode.signature, node.signature)) {
+                    // The same signed record was verified when first registered.
+                    oldNode.checkIn();
+                    heartbeat(oldNode, true);
+                    xmlOut.writeStatus(XMLHelper.STATUS_SUCCESS, "Registration Suceeded.");
+                    return;
+                }
             }
+
+            // The record is published once it has been verified.
+            if (NodeVerifier.verify(node, verificationListener)) {
+                xmlOut.writeStatus(STATUS_PENDING, "Registration Pending Verification.");
+            } else {
+                xmlOut.writeStatus(ERROR_BUSY,
+                        "Too many pending registrations. Try again later.");
+            }
+        } finally {
+            ADD_LATENCY.recordSince(start);
         }
+    }
 
-        FutureTask<Boolean> verification = NodeVerifier.verify(node);
-        try {
-            if (verification.get(10, TimeUnit.SECONDS)) {
-                synchronized (registeredKeys) {
-                    registeredKeys.put(node.serviceId, node);
-                }
+    private final NodeVerifier.Listener verificationListener = new NodeVerifier.Listener() {
+        @Override
+        public void verified(DirectoryRecord node, boolean accepted) {
+            if (!accepted || !publish(node, false)) {
+                return;
+            }
+            if (syncService != null) {
+                syncService.add(node, false);
+            }
+            saveEditsLater();
+        }
+    };
 
-                synchronized (mutableExitNodeList) {
-                    mutableExitNodeList.add(node);
-                }
-                xmlOut.writeStatus(XMLHelper.STATUS_SUCCESS, "Registration Suceeded.");
+    /**
+     * Make a verified record visible, replacing any earlier registration of
+     * its serviceId under the same key.
+     *
+     * @param merged
+     *            Whether the record came from a partner, which may still
+     *            hold a record removed here.
+     * @return False if the serviceId has since been taken by another key, or
+     *         the record came from a partner and has been removed.
+     */
+    private boolean publish(DirectoryRecord node, boolean merged) {
+        synchronized (lockFor(node.serviceId)) {
+            DirectoryRecord oldNode = registeredKeys.get(node.serviceId);
+            if (oldNode != null && !oldNode.publicKey.equals(node.publicKey)) {
+                return false;
             }
-            if (this.syncService != null) {
-            	this.syncService.add(node, false);
+            if (merged && tombstones.covers(node.serviceId, node.createdTime)) {
+                return false;
             }
-        } catch (Exception e) {
-            e.printStackTrace();
+            tombstones.forget(node.serviceId);
+            registeredKeys.put(node.serviceId, node);
+            if (oldNode != null) {
+                // Heartbeats the old registration took must not be taken again.
+                node.mergeHeartbeat(oldNode.lastHeartbeat());
+                exitNodeList.remove(oldNode);
+                index.remove(oldNode);
+            }
+            exitNodeList.add(node);
+            index.add(node);
+            digest.add(node);
+            logChange(ChangeLog.TYPE.ADD, node);
         }
+        return true;
     }
 
-    void remove(DirectoryRecord node) {
-        synchronized (mutableExitNodeList) {
-            mutableExitNodeList.remove(node);
+    /**
+     * Remove a record, and remember that it was removed.
+     *
+     * @return False if the serviceId has already been re-registered.
+     */
+    private boolean remove(DirectoryRecord node, long now) {
+        synchronized (lockFor(node.serviceId)) {
+            if (!registeredKeys.remove(node.serviceId, node)) {
+                return false;
+            }
+            exitNodeList.remove(node);
+            index.remove(node);
+            digest.remove(node);
+            tombstones.add(node.serviceId, node.createdTime, now);
+            logChange(ChangeLog.TYPE.REMOVE, node);
+            return true;
         }
-        synchronized (registeredKeys) {
-            registeredKeys.remove(node.serviceId);
+    }
+
+    /**
+     * Remove a record here and have partners remove it too.
+     */
+    private boolean removeAndRelay(DirectoryRecord node, long now) {
+        if (!remove(node, now)) {
+            return false;
+        }
+        if (syncService != null) {
+            syncService.remove(node);
         }
+        return true;
     }
 
-    public void checkIn(DirectoryRecord node, XMLHelper xmlOut) throws SAXException {
-        if (node.checkForErrors(false, xmlOut)) {
+    private Object lockFor(long serviceId) {
+        int hash = (int) (serviceId ^ (serviceId >>> 32));
+        return recordLocks[(hash ^ (hash >>> 16)) & (RECORD_LOCKS - 1)];
+    }
+
+    /**
+     * Note a check-in, which has already updated the record's check-in time,
+     * to be logged with the next batch of heartbeats.
+     *
+     * @param local
+     *            Whether the check-in was made here, and so should be sent
+     *            to partners.
+     */
+    private void heartbeat(DirectoryRecord node, boolean local) {
+        if (journal == null) {
+            // Replaying the journal, which has these already.
+            logChange(ChangeLog.TYPE.CHECKIN, node);
             return;
         }
+        heartbeats.put(node.serviceId, node);
+        if (local && syncService != null) {
+            localHeartbeats.put(node.serviceId, node);
+        }
+    }
 
-        if (!registeredKeys.containsKey(node.serviceId)) {
-            xmlOut.writeStatus(XMLHelper.ERROR_UNREGISTERED_SERVICE_ID,
-                    "Unregistered serviceId. Register this ExitNode before using checkin.");
-            return;
+    /**
+     * Log the check-ins made since the last flush, once per record with its
+     * latest check-in time, and send those made here to partners.
+     */
+    void flushHeartbeats() {
+        long start = System.nanoTime();
+        for (Long serviceId : heartbeats.keySet()) {
+            // A check-in arriving after this is left for the next flush.
+            DirectoryRecord node = heartbeats.remove(serviceId);
+            if (node == null) {
+                continue;
+            }
+            synchronized (lockFor(serviceId)) {
+                // Skip records removed or replaced since they checked in.
+                if (registeredKeys.get(serviceId) == node) {
+                    logChange(ChangeLog.TYPE.CHECKIN, node);
+                    HEARTBEATS.incrementAndGet();
+                }
+            }
+        }
+        for (Long serviceId : localHeartbeats.keySet()) {
+            DirectoryRecord node = localHeartbeats.remove(serviceId);
+            if (node != null && registeredKeys.get(serviceId) == node) {
+                syncService.add(node, true);
+            }
+        }
+        HEARTBEAT_LATENCY.recordSince(start);
+    }
+
+    /**
+     * Note a change that has been applied to the database in the change log,
+     * the expiry index and the journal.
+     *
+     * Check-ins are left out of the change log. Listings do not carry
+     * check-in times, so a check-in does not change them: it must not start
+     * a new generation, or clients polling for changes would be sent records
+     * they already have.
+     */
+    private void logChange(ChangeLog.TYPE type, DirectoryRecord node) {
+        if (type != ChangeLog.TYPE.CHECKIN) {
+            changes.append(type, node);
         }
-        DirectoryRecord oldNode = registeredKeys.get(node.serviceId);
-        if (Arrays.equals(node.signature, oldNode.signature)
-                && oldNode.publicKey.equals(node.publicKey)) {
-            registeredKeys.get(node.serviceId).checkIn();
+        if (type == ChangeLog.TYPE.REMOVE) {
+            expiry.cancel(node);
         } else {
-            xmlOut.writeStatus(XMLHelper.ERROR_INVALID_SIGNATURE,
-                    "Public Key or Signature does not match existing registration.");
+            expiry.schedule(node, node.lastCheckinTime + MAX_AGE + GRACE_PERIOD);
+        }
+        RecordDelta entry;
+        switch (type) {
+        case ADD:
+            entry = new RecordDelta(node, TYPE.NEWREG);
+            break;
+        case CHECKIN:
+            entry = new RecordDelta(node, TYPE.UPDATE);
+            break;
+        default:
+            entry = new RecordDelta(node, TYPE.REMOVE);
+        }
+        journal(entry);
+    }
+
+    private void journal(RecordDelta entry) {
+        if (journal == null) {
             return;
         }
-        if (this.syncService != null) {
-        	this.syncService.add(node, true);
+        try {
+            journal.append(entry);
+        } catch (IOException e) {
+            e.printStackTrace();
         }
-        xmlOut.writeStatus(XMLHelper.STATUS_SUCCESS, "Checkin Suceeded.");
     }
 
-    void saveEdits() throws SAXException, IOException {
-        PriorityQueue<DirectoryRecord> newReadable = new PriorityQueue<DirectoryRecord>();
-        synchronized (mutableExitNodeList) {
-            for (DirectoryRecord node : mutableExitNodeList) {
-                newReadable.add(node);
+    public void checkIn(DirectoryRecord node, XMLHelper xmlOut) throws SAXException {
+        long start = System.nanoTime();
+        try {
+            if (node.checkForErrors(false, xmlOut)) {
+                return;
+            }
+
+            DirectoryRecord oldNode = registeredKeys.get(node.serviceId);
+            if (oldNode == null) {
+                xmlOut.writeStatus(XMLHelper.ERROR_UNREGISTERED_SERVICE_ID,
+                        "Unregistered serviceId. Register this ExitNode before using checkin.");
+                return;
             }
+            if (Arrays.equals(node.signature, oldNode.signature)
+                    && oldNode.publicKey.equals(node.publicKey)) {
+                oldNode.checkIn();
+                heartbeat(oldNode, true);
+            } else {
+                xmlOut.writeStatus(XMLHelper.ERROR_INVALID_SIGNATURE,
+                        "Public Key or Signature does not match existing registration.");
+                return;
+            }
+            xmlOut.writeStatus(XMLHelper.STATUS_SUCCESS, "Checkin Suceeded.");
+        } finally {
+            CHECK_IN_LATENCY.recordSince(start);
         }
-        readableExitNodeList = newReadable;
-        saveToFile(new File(DATABASE_FILE));
     }
 
-    public void getUpdatesSince(long lastUpdateTime, XMLHelper xmlOut) {
-        for (DirectoryRecord node : readableExitNodeList) {
-            if (node.createdTime > lastUpdateTime) {
-                try {
-                    node.fullXML(xmlOut);
-                } catch (Exception e) {
-                    continue;
+    /**
+     * Check in a service from a heartbeat signed with its own key. Each
+     * heartbeat must be newer than the last one accepted for the service,
+     * so a heartbeat cannot be replayed, and close to the time here, so one
+     * cannot be saved up to be used later. The newest heartbeat accepted is
+     * journaled, saved and sent to partners with the check-in, and kept when
+     * the record is replaced, so only those taken in the last
+     * HEARTBEAT_INTERVAL before a crash could be replayed after it.
+     *
+     * @return The outcome, one of the HeartbeatBatch statuses.
+     */
+    byte checkIn(HeartbeatBatch.Heartbeat heartbeat) {
+        long start = System.nanoTime();
+        byte status = acceptHeartbeat(heartbeat);
+        if (status != HeartbeatBatch.ACCEPTED) {
+            HEARTBEATS_REFUSED.incrementAndGet();
+        }
+        CHECK_IN_LATENCY.recordSince(start);
+        return status;
+    }
+
+    private byte acceptHeartbeat(HeartbeatBatch.Heartbeat heartbeat) {
+        DirectoryRecord node = registeredKeys.get(heartbeat.serviceId);
+        if (node == null) {
+            return HeartbeatBatch.UNREGISTERED;
+        }
+        if (Math.abs(System.currentTimeMillis() - heartbeat.timestamp) > MAX_HEARTBEAT_SKEW
+                || heartbeat.timestamp <= node.lastHeartbeat()) {
+            return HeartbeatBatch.STALE;
+        }
+        PublicKey key = SignatureCache.publicKey(node.publicKey);
+        try {
+            if (key == null || !heartbeat.verify(key)) {
+                return HeartbeatBatch.INVALID_SIGNATURE;
+            }
+        } catch (GeneralSecurityException e) {
+            return HeartbeatBatch.INVALID_SIGNATURE;
+        }
+        // The same heartbeat may have been accepted meanwhile.
+        if (!node.acceptHeartbeat(heartbeat.timestamp)) {
+            return HeartbeatBatch.STALE;
+        }
+        node.checkIn();
+        heartbeat(node, true);
+        return HeartbeatBatch.ACCEPTED;
+    }
+
+    /**
+     * Have the snapshot and sampler rebuilt by the cleaner. However many
+     * changes are made, they are rebuilt at most once every SAVE_INTERVAL.
+     */
+    void saveEditsLater() {
+        edited.set(true);
+    }
+
+    synchronized void saveEdits() throws SAXException, IOException {
+        long start = System.nanoTime();
+        try {
+            snapshot = buildSnapshot();
+            sampler = new BandwidthSampler(changes.generation(), index.exitNodes());
+            if (journal != null && journal.size() - carriedRemovals >= COMPACTION_THRESHOLD) {
+                compact();
+            }
+        } finally {
+            SAVE_LATENCY.recordSince(start);
+        }
+    }
+
+    /**
+     * Rewrite the database file with the current records and empty the
+     * journal.
+     */
+    private void compact() throws SAXException, IOException {
+        long start = System.nanoTime();
+        try {
+            // Changes are journaled afresh from here on, so the records are
+            // written out without holding up anything journaled meanwhile.
+            // Every change the copy might miss is in the new journal, and
+            // replaying one it already has changes nothing.
+            journal.rotate();
+            // The database file only holds records, so the removals still
+            // remembered are carried over into the new journal.
+            int carried = 0;
+            for (int b = 0; b < MerkleDigest.LEAVES; b++) {
+                for (RecordDelta d : tombstones.bucket(b)) {
+                    journal.append(d);
+                    carried++;
                 }
+            }
+            carriedRemovals = carried;
+            List<DirectoryRecord> records = new ArrayList<DirectoryRecord>(exitNodeList);
+            File dbFile = new File(DATABASE_FILE);
+            File tempFile = new File(DATABASE_FILE + ".tmp");
+            saveToFile(tempFile, records);
+            if (!tempFile.renameTo(dbFile)) {
+                dbFile.delete();
+                if (!tempFile.renameTo(dbFile)) {
+                    throw new IOException("Unable to replace " + DATABASE_FILE);
+                }
+            }
+            journal.discardRotated();
+        } finally {
+            COMPACT_LATENCY.recordSince(start);
+        }
+    }
+
+    /**
+     * The registered record with a serviceId, or null.
+     */
+    DirectoryRecord get(long serviceId) {
+        return registeredKeys.get(serviceId);
+    }
+
+    /**
+     * The Merkle tree over the registered records.
+     */
+    MerkleDigest getDigest() {
+        return digest;
+    }
+
+    /**
+     * The records removed recently.
+     */
+    Tombstones getTombstones() {
+        return tombstones;
+    }
+
+    /**
+     * The signed listing of the database as of the last call to saveEdits, or
+     * null if it could not be signed.
+     */
+    public DirectorySnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    private DirectorySnapshot buildSnapshot() throws SAXException, IOException {
+        try {
+            return DirectorySnapshot.listing(fullListing(changes.generation()), authority);
+        } catch (SignatureException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * The signed listing of the records matching a query, as of the current
+     * generation.
+     */
+    DirectorySnapshot query(ListingQuery query, ListingFormat format) throws SAXException,
+            SignatureException, IOException {
+        long generation = changes.generation();
+        String key = query.key() + format.tag;
+        DirectorySnapshot cached = queryCache.get(key);
+        if (cached != null && cached.generation() == generation) {
+            return cached;
+        }
+
+        if (queryCache.size() >= QUERY_CACHE_SIZE) {
+            for (Map.Entry<String, DirectorySnapshot> entry : queryCache.entrySet()) {
+                if (entry.getValue().generation() != generation) {
+                    queryCache.remove(entry.getKey(), entry.getValue());
+                }
+            }
+            if (queryCache.size() >= QUERY_CACHE_SIZE) {
+                queryCache.clear();
+            }
+        }
+        Listing listing = new Listing(generation, 0, select(query),
+                Collections.<Long> emptyList());
+        DirectorySnapshot result = DirectorySnapshot.listing(listing,
+                new ListingFormat[] { format }, authority, query.tag());
+        queryCache.put(key, result);
+        return result;
+    }
+
+    /**
+     * The records matching a query, newest first.
+     */
+    List<DirectoryRecord> select(ListingQuery query) {
+        return index.select(query);
+    }
+
+    /**
+     * A listing of up to n distinct exit nodes picked at random in
+     * proportion to their bandwidth, as of the last call to saveEdits.
+     */
+    Listing sample(int n) {
+        BandwidthSampler current = sampler;
+        if (current == null) {
+            current = new BandwidthSampler(changes.generation(), index.exitNodes());
+        }
+        List<DirectoryRecord> picked = current.sample(n, n * SAMPLE_ATTEMPTS);
+        // Leave out nodes that have been removed since.
+        List<DirectoryRecord> records = new ArrayList<DirectoryRecord>(picked.size());
+        for (DirectoryRecord node : picked) {
+            if (registeredKeys.get(node.serviceId) == node) {
+                records.add(node);
+            }
+        }
+        return new Listing(current.generation, 0, records, Collections.<Long> emptyList());
+    }
+
+    /**
+     * The generation of the most recent change.
+     */
+    public long generation() {
+        return changes.generation();
+    }
+
+    /**
+     * Whether an incremental listing can be produced for a client that last
+     * saw the given generation.
+     */
+    public boolean hasUpdatesSince(long lastGeneration) {
+        return lastGeneration > 0 && changes.covers(lastGeneration);
+    }
+
+    /**
+     * The listing for a client that last saw the given generation. If the
+     * change log still covers that generation only the records changed
+     * since, and the serviceIds of removed records, are listed. Otherwise
+     * every record is.
+     */
+    public Listing listingSince(long lastGeneration) {
+        Map<Long, ChangeLog.Change> delta = null;
+        if (lastGeneration > 0) {
+            delta = changes.since(lastGeneration);
+        }
+        if (delta == null) {
+            return fullListing(changes.generation());
+        }
+
+        // Generation of the newest change included in the delta.
+        long generation = lastGeneration;
+        List<DirectoryRecord> records = new ArrayList<DirectoryRecord>();
+        List<Long> removed = new ArrayList<Long>();
+        for (ChangeLog.Change change : delta.values()) {
+            generation = Math.max(generation, change.generation);
+            if (change.type == ChangeLog.TYPE.REMOVE) {
+                removed.add(change.serviceId);
             } else {
-                break;
+                records.add(change.record);
+            }
+        }
+        return new Listing(generation, lastGeneration, records, removed);
+    }
+
+    /**
+     * Write the XML listing for a client that last saw the given generation.
+     *
+     * @see #listingSince(long)
+     */
+    public void getUpdatesSince(long lastGeneration, XMLHelper xmlOut) throws SAXException {
+        listingSince(lastGeneration).writeXML(xmlOut);
+    }
+
+    /**
+     * A page of the full listing.
+     *
+     * @param after
+     *            The position the page starts after, from
+     *            Listing.position, or null for the first page.
+     * @param limit
+     *            The most records on the page.
+     */
+    Listing page(DirectoryRecord after, int limit) {
+        long generation = changes.generation();
+        Iterator<DirectoryRecord> rest = (after == null ? exitNodeList : exitNodeList.tailSet(
+                after, false)).iterator();
+        List<DirectoryRecord> records = new ArrayList<DirectoryRecord>(limit);
+        while (records.size() < limit && rest.hasNext()) {
+            records.add(rest.next());
+        }
+        String next = rest.hasNext() ? Listing.cursor(records.get(records.size() - 1)) : null;
+        return new Listing(generation, 0, records, Collections.<Long> emptyList(), next);
+    }
+
+    /**
+     * The full listing, read from the records as they are while it is
+     * written rather than copied first, for streaming.
+     */
+    Listing liveListing() {
+        return new Listing(changes.generation(), 0, exitNodeList, Collections.<Long> emptyList());
+    }
+
+    /**
+     * The full listing.
+     *
+     * @param generation
+     *            The generation read before listing. Changes are logged after
+     *            they are applied, so everything up to it is reflected in the
+     *            records listed.
+     */
+    private Listing fullListing(long generation) {
+        return new Listing(generation, 0, new ArrayList<DirectoryRecord>(exitNodeList),
+                Collections.<Long> emptyList());
+    }
+
+    private void writeRecords(Iterable<DirectoryRecord> records, XMLHelper xmlOut) {
+        for (DirectoryRecord node : records) {
+            try {
+                node.fullXML(xmlOut, true);
+            } catch (Exception e) {
+                continue;
             }
         }
     }
 
     public void clear() throws SAXException, IOException {
-        mutableExitNodeList.clear();
-        registeredKeys.clear();
+        long now = System.currentTimeMillis();
+        for (DirectoryRecord node : registeredKeys.values()) {
+            removeAndRelay(node, now);
+        }
         saveEdits();
     }
 
-    private void saveToFile(File file) throws SAXException, IOException {
+    private void saveToFile(File file, Iterable<DirectoryRecord> records) throws SAXException,
+            IOException {
         FileOutputStream fos = new FileOutputStream(file);
         XMLHelper xmlOut = new XMLHelper(fos);
-        getUpdatesSince(0, xmlOut);
+        writeRecords(records, xmlOut);
         xmlOut.close();
+        fos.getFD().sync();
         fos.close();
     }
 
@@ -182,13 +759,45 @@ public class DirectoryDB {
         FileInputStream in = new FileInputStream(file);
         List<DirectoryRecord> savedNodes = new LinkedList<DirectoryRecord>();
         XMLHelper.parse(in, new DirectoryRecordHandler(savedNodes, xmlOut), null);
+        // Saved records were verified when they were registered.
         for (DirectoryRecord node : savedNodes) {
-            add(node, xmlOut);
+            publish(node, false);
         }
-        saveEdits();
         in.close();
     }
 
+    /**
+     * Remove the records that have gone MAX_AGE, and a grace period, without
+     * checking in as of a time, and forget removals made that long ago.
+     * Partners holding a removed record expire it themselves within that
+     * time, so it can no longer come back.
+     */
+    void clean(long now) {
+        long start = System.nanoTime();
+        boolean removed = false;
+        for (DirectoryRecord node : expiry.expire(now)) {
+            // Check if the Node is too old with a grace period
+            if (now > node.lastCheckinTime + MAX_AGE + GRACE_PERIOD) {
+                removeAndRelay(node, now);
+                EXPIRED.incrementAndGet();
+                removed = true;
+                continue;
+            }
+            synchronized (lockFor(node.serviceId)) {
+                // Checked in without passing through the index. A record
+                // replaced meanwhile is left to its replacement's deadline.
+                if (registeredKeys.get(node.serviceId) == node) {
+                    expiry.schedule(node, node.lastCheckinTime + MAX_AGE + GRACE_PERIOD);
+                }
+            }
+        }
+        tombstones.expire(now - MAX_AGE - GRACE_PERIOD);
+        if (removed) {
+            saveEditsLater();
+        }
+        CLEAN_LATENCY.recordSince(start);
+    }
+
     private class DBCleaner implements Runnable {
 
         @Override
@@ -198,16 +807,15 @@ public class DirectoryDB {
             cleaner.schedule(new TimerTask() {
                 @Override
                 public void run() {
-                    synchronized (mutableExitNodeList) {
-                        long startTime = System.currentTimeMillis();
-                        Iterator<DirectoryRecord> nodes = mutableExitNodeList.iterator();
-                        while (nodes.hasNext()) {
-                            DirectoryRecord node = nodes.next();
-                            // Check if the Node is too old with a grace period
-                            if (startTime > node.lastCheckinTime + MAX_AGE + GRACE_PERIOD) {
-                                nodes.remove();
-                            }
-                        }
+                    clean(System.currentTimeMillis());
+                }
+            }, 0, CLEAN_INTERVAL);
+
+            cleaner.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    if (!edited.getAndSet(false)) {
+                        return;
                     }
                     try {
                         saveEdits();
@@ -217,25 +825,54 @@ public class DirectoryDB {
                         e.printStackTrace();
                     }
                 }
-            }, 0, MAX_AGE / 4);
+            }, SAVE_INTERVAL, SAVE_INTERVAL);
+
+            cleaner.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    flushHeartbeats();
+                }
+            }, HEARTBEAT_INTERVAL, HEARTBEAT_INTERVAL);
         }
     }
 
-	public void merge(RecordDelta d) {
+	/**
+	 * Apply a change made by a partner, or read back from the journal.
+	 * Records that have been removed here are not brought back, and a
+	 * removal only removes the record it names, or an older one.
+	 *
+	 * @return Whether anything changed.
+	 */
+	public boolean merge(RecordDelta d) {
+		MERGED.incrementAndGet();
 		if (d.type == TYPE.UPDATE) {
-			registeredKeys.get(d.serviceId).mergeCheckIn(d.lastCheckinTime);
+			DirectoryRecord r = registeredKeys.get(d.serviceId);
+			if (r == null) {
+				return false;
+			}
+			r.mergeCheckIn(d.lastCheckinTime);
+			r.mergeHeartbeat(d.lastHeartbeat);
+			heartbeat(r, false);
+			return true;
+		} else if (d.type == TYPE.REMOVE) {
+			long now = System.currentTimeMillis();
+			synchronized (lockFor(d.serviceId)) {
+				DirectoryRecord r = registeredKeys.get(d.serviceId);
+				// Removals from older versions don't say which record they meant.
+				if (r != null && (d.createdTime == 0 || r.createdTime <= d.createdTime)) {
+					tombstones.add(d.serviceId, Math.max(d.createdTime, r.createdTime), now);
+					return remove(r, now);
+				}
+				if (d.createdTime != 0 && !tombstones.covers(d.serviceId, d.createdTime)) {
+					// Not held here, but it must not be taken from another
+					// partner either.
+					tombstones.add(d.serviceId, d.createdTime, now);
+					journal(d);
+				}
+				return false;
+			}
 		} else {
-			DirectoryRecord r = d.record;
-            synchronized (registeredKeys) {
-            	if (registeredKeys.containsKey(d.serviceId)) {
-            		remove(registeredKeys.get(d.serviceId));
-            	}
-                registeredKeys.put(d.serviceId, r);
-            }
-
-            synchronized (mutableExitNodeList) {
-                mutableExitNodeList.add(r);
-            }
+			return publish(d.record, true);
 		}
 	}
 }
@@ -3,22 +3,21 @@ package directoryServer;
 import java.io.Serializable;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
-import java.security.Signature;
 
-import org.bouncycastle.util.encoders.Base64;
 import org.xml.sax.SAXException;
 
 import edu.washington.cs.oneswarm.f2f.xml.XMLHelper;
 
-abstract class DirectoryRecord implements Comparable<ProxyDirectoryRecord>, Serializable {
+abstract class DirectoryRecord implements Comparable<DirectoryRecord>, Serializable {
 	private static final long serialVersionUID = -7257128734974058246L;
 	// Verification Constants
     private static final int PUB_KEY_LENGTH = 162; // length of Key.getEncoded()
     private static final int SIG_LENGTH = 128; // Bytes after Base64.decode
     private static final int MIN_NICKNAME_LENGTH = 3;
 
-    long createdTime; // As provided by System.currentTimeMillis();
-    long lastCheckinTime; // Essentially a Keep Alive
+    long createdTime; // As provided by System.currentTimeMillis(); the record's version
+    volatile long lastCheckinTime; // Essentially a Keep Alive
+    private long lastHeartbeat; // Newest signed heartbeat accepted, by the service's clock. Guarded by this.
     long serviceId;
     String publicKey;
     String nickname;
@@ -29,7 +28,25 @@ abstract class DirectoryRecord implements Comparable<ProxyDirectoryRecord>, Seri
         lastCheckinTime = createdTime;
     }
 
-    abstract public void fullXML(XMLHelper xmlOut) throws SAXException;
+    public void fullXML(XMLHelper xmlOut) throws SAXException {
+        fullXML(xmlOut, false);
+    }
+
+    /**
+     * @param saved
+     *            Whether to include the times the record was created and
+     *            last checked in, which only the database file keeps.
+     */
+    abstract void fullXML(XMLHelper xmlOut, boolean saved) throws SAXException;
+
+    protected void writeTimes(XMLHelper xmlOut) throws SAXException {
+        xmlOut.writeTag(DirectoryDB.CREATED, Long.toString(createdTime));
+        xmlOut.writeTag(DirectoryDB.LAST_CHECKIN, Long.toString(lastCheckinTime));
+        long heartbeat = lastHeartbeat();
+        if (heartbeat != 0) {
+            xmlOut.writeTag(DirectoryDB.LAST_HEARTBEAT, Long.toString(heartbeat));
+        }
+    }
 
     abstract protected byte[] hashBase();
 
@@ -40,7 +57,33 @@ abstract class DirectoryRecord implements Comparable<ProxyDirectoryRecord>, Seri
     }
     
     public void mergeCheckIn(long checkIn) {
-    	lastCheckinTime = Math.max(System.currentTimeMillis(), checkIn);
+    	lastCheckinTime = Math.max(lastCheckinTime, checkIn);
+    }
+
+    /**
+     * Note a signed heartbeat, unless one at least as new has already been
+     * accepted, so that each heartbeat can only be used once.
+     *
+     * @return Whether the heartbeat was newer than those accepted before.
+     */
+    synchronized boolean acceptHeartbeat(long timestamp) {
+        if (timestamp <= lastHeartbeat) {
+            return false;
+        }
+        lastHeartbeat = timestamp;
+        return true;
+    }
+
+    /**
+     * Note a heartbeat accepted by a partner, before a restart, or by the
+     * record this one replaces.
+     */
+    synchronized void mergeHeartbeat(long timestamp) {
+        lastHeartbeat = Math.max(lastHeartbeat, timestamp);
+    }
+
+    synchronized long lastHeartbeat() {
+        return lastHeartbeat;
     }
 
     public boolean checkForErrors(boolean fullCheckInclSignature, XMLHelper xmlOut)
@@ -55,9 +98,8 @@ abstract class DirectoryRecord implements Comparable<ProxyDirectoryRecord>, Seri
             xmlOut.writeStatus(XMLHelper.ERROR_BAD_REQUEST, "Invalid Service ID.");
             caughtErrors = true;
         }
-        PublicKey pubKey = decodeKeyString(publicKey);
-        if (pubKey == null || pubKey.getAlgorithm() == "RSA" || pubKey.getFormat() == "PKCS#8"
-                || pubKey.getEncoded().length != PUB_KEY_LENGTH) {
+        PublicKey pubKey = SignatureCache.publicKey(publicKey);
+        if (pubKey == null || pubKey.getEncoded().length != PUB_KEY_LENGTH) {
             xmlOut.writeStatus(XMLHelper.ERROR_BAD_REQUEST, "Invalid RSA Public Key.");
             caughtErrors = true;
         }
@@ -73,65 +115,58 @@ abstract class DirectoryRecord implements Comparable<ProxyDirectoryRecord>, Seri
                 caughtErrors = true;
             }
             if (!caughtErrors) {
-                Signature sig;
                 try {
-                    sig = Signature.getInstance("SHA1withRSA");
-                    try {
-                        sig.initVerify(pubKey);
-                        sig.update(hashBase());
-                        if (!sig.verify(signature)) {
-                            xmlOut.writeStatus(XMLHelper.ERROR_INVALID_SIGNATURE,
-                                    "Signature Verification Failed.");
-                            caughtErrors = true;
-                        }
-                    } catch (Exception e) {
-                        xmlOut.writeStatus(XMLHelper.ERROR_INVALID_SIGNATURE, "Invalid Signature: "
-                                + e.getMessage());
+                    if (!SignatureCache.verify(publicKey, pubKey, hashBase(), signature)) {
+                        xmlOut.writeStatus(XMLHelper.ERROR_INVALID_SIGNATURE,
+                                "Signature Verification Failed.");
                         caughtErrors = true;
                     }
                 } catch (NoSuchAlgorithmException e) {
                     xmlOut.writeStatus(XMLHelper.ERROR_GENERAL_SERVER,
                             "Signature Verification failed on the Server");
                     e.printStackTrace();
+                } catch (Exception e) {
+                    xmlOut.writeStatus(XMLHelper.ERROR_INVALID_SIGNATURE, "Invalid Signature: "
+                            + e.getMessage());
+                    caughtErrors = true;
                 }
             }
         }
         return caughtErrors;
     }
 
-    private PublicKey decodeKeyString(String key) {
-        if (key == null || key.length() < 1) {
-            return null;
+    /**
+     * Whether this record replaces another registered for the same serviceId
+     * elsewhere. The later registration wins, and of two made at the same
+     * time, the one with the greater signature, so that every instance picks
+     * the same one.
+     */
+    boolean supersedes(DirectoryRecord other) {
+        if (this.createdTime != other.createdTime) {
+            return this.createdTime > other.createdTime;
         }
-        final String[] parts = key.split(":");
-        return new PublicKey() {
-            private static final long serialVersionUID = 4008509182035615274L;
-
-            @Override
-            public String getAlgorithm() {
-                return parts[0];
-            }
-
-            @Override
-            public String getFormat() {
-                return parts[1];
-            }
-
-            @Override
-            public byte[] getEncoded() {
-                return Base64.decode(parts[2]);
+        byte[] mine = this.signature == null ? new byte[0] : this.signature;
+        byte[] theirs = other.signature == null ? new byte[0] : other.signature;
+        for (int i = 0; i < Math.min(mine.length, theirs.length); i++) {
+            if (mine[i] != theirs[i]) {
+                return (mine[i] & 0xff) > (theirs[i] & 0xff);
             }
-        };
+        }
+        return mine.length > theirs.length;
     }
 
+    /**
+     * Orders records newest first, and by serviceId among records created at
+     * the same time.
+     */
     @Override
-    public int compareTo(ProxyDirectoryRecord other) {
-        if (this.createdTime > other.createdTime) {
-            return -1;
+    public int compareTo(DirectoryRecord other) {
+        if (this.createdTime != other.createdTime) {
+            return this.createdTime > other.createdTime ? -1 : 1;
         }
-        if (this.createdTime == other.createdTime) {
-            return 0;
+        if (this.serviceId != other.serviceId) {
+            return this.serviceId < other.serviceId ? -1 : 1;
         }
-        return 1;
+        return 0;
     }
 }
@@ -9,62 +9,130 @@ import org.xml.sax.helpers.DefaultHandler;
 
 import edu.washington.cs.oneswarm.f2f.xml.XMLHelper;
 
+/**
+ * Reads the records in a register or check-in request, or in a file of them
+ * such as the database file.
+ *
+ * Registrations are small and have a fixed shape, so when parsing one,
+ * anything much bigger or deeper than a single record is rejected as soon as
+ * it is seen, rather than after the whole body has been parsed.
+ */
 public class DirectoryRecordHandler extends DefaultHandler {
+    // Most bytes read from a request body.
+    static final int MAX_BODY = Integer.getInteger("directory.register.maxbytes", 16 * 1024);
+    // Most elements in a request: the root, one record and its fields.
+    private static final int MAX_ELEMENTS = 16;
+    private static final int MAX_DEPTH = 3;
+    // Longest value of a field, enough for a 4096 bit key.
+    private static final int MAX_VALUE = 4 * 1024;
+
+    /**
+     * Thrown when a request is bigger than a registration can be.
+     */
+    public static class LimitException extends SAXException {
+        private static final long serialVersionUID = 1L;
+
+        public LimitException(String message) {
+            super(message);
+        }
+    }
+
     private DirectoryRecord tempNode;
-    private String tempVal;
+    // Text is gathered across calls to characters, since the parser may
+    // deliver a value in several pieces.
+    private final StringBuilder tempVal = new StringBuilder(256);
     private boolean errors = false;
+    private int elements;
+    private int depth;
     private final List<DirectoryRecord> exitNodes;
     private final XMLHelper xmlOut;
+    // Whether the size limits of a registration apply.
+    private final boolean limited;
 
+    /**
+     * A handler reading any number of records, for files this server wrote
+     * or was given by its operator.
+     */
     public DirectoryRecordHandler(List<DirectoryRecord> list, XMLHelper xmlOut) {
+        this(list, xmlOut, false);
+    }
+
+    /**
+     * @param limited
+     *            Whether to reject anything bigger than a single record, as
+     *            for the body of a request.
+     */
+    public DirectoryRecordHandler(List<DirectoryRecord> list, XMLHelper xmlOut, boolean limited) {
         this.exitNodes = list;
         this.xmlOut = xmlOut;
+        this.limited = limited;
     }
 
     @Override
     public void startElement(String uri, String localName, String qName, Attributes attributes)
             throws SAXException {
-        if (qName.equalsIgnoreCase(XMLHelper.EXIT_NODE)) {
-            tempNode = new ProxyDirectoryRecord();
-        } else if (qName.equalsIgnoreCase(XMLHelper.SERVICE)) {
-            tempNode = new PortDirectoryRecord();
+        elements++;
+        depth++;
+        if (limited && elements > MAX_ELEMENTS) {
+            throw new LimitException("Too many elements.");
         }
-        errors = false;
+        if (limited && depth > MAX_DEPTH) {
+            throw new LimitException("Elements nested too deeply.");
+        }
+        if (qName.equalsIgnoreCase(XMLHelper.EXIT_NODE)
+                || qName.equalsIgnoreCase(XMLHelper.SERVICE)) {
+            if (limited && tempNode != null) {
+                throw new LimitException("Only one record may be registered at a time.");
+            }
+            tempNode = qName.equalsIgnoreCase(XMLHelper.EXIT_NODE) ? new ProxyDirectoryRecord()
+                    : new PortDirectoryRecord();
+            errors = false;
+        }
+        tempVal.setLength(0);
     }
 
     @Override
     public void characters(char ch[], int start, int length) throws SAXException {
-        tempVal = new String(ch, start, length);
+        if (limited && tempVal.length() + length > MAX_VALUE) {
+            throw new LimitException("Value too long.");
+        }
+        tempVal.append(ch, start, length);
     }
 
     @Override
     public void endElement(String uri, String localName, String qName) throws SAXException {
+        depth--;
+        String value = tempVal.toString();
+        tempVal.setLength(0);
         if (tempNode != null && qName.equalsIgnoreCase(tempNode.type())) {
             if (!errors) {
                 exitNodes.add(tempNode);
             }
+        } else if (qName.equalsIgnoreCase(XMLHelper.ROOT)) {
+        } else if (tempNode == null) {
+            xmlOut.writeStatus(XMLHelper.ERROR_BAD_REQUEST, "Unexpected Tag: " + qName);
+            errors = true;
         } else if (qName.equalsIgnoreCase(XMLHelper.SERVICE_ID)) {
-            tempNode.serviceId = Long.parseLong(tempVal);
+            tempNode.serviceId = Long.parseLong(value.trim());
         } else if (qName.equalsIgnoreCase(XMLHelper.PUBLIC_KEY)) {
-            tempNode.publicKey = tempVal;
+            tempNode.publicKey = value;
         } else if (qName.equalsIgnoreCase(XMLHelper.NICKNAME)) {
-            tempNode.nickname = tempVal;
+            tempNode.nickname = value;
         } else if (qName.equalsIgnoreCase(XMLHelper.BANDWIDTH)) {
             if (tempNode instanceof ProxyDirectoryRecord) {
-                ((ProxyDirectoryRecord) tempNode).bandwidth = Integer.parseInt(tempVal);
+                ((ProxyDirectoryRecord) tempNode).bandwidth = Integer.parseInt(value.trim());
             }
         } else if (qName.equalsIgnoreCase(XMLHelper.EXIT_POLICY)) {
             if (tempNode instanceof ProxyDirectoryRecord) {
-                ((ProxyDirectoryRecord) tempNode).exitPolicy = tempVal;
+                ((ProxyDirectoryRecord) tempNode).exitPolicy = value;
             }
         } else if (qName.equalsIgnoreCase(XMLHelper.VERSION)) {
             if (tempNode instanceof ProxyDirectoryRecord) {
-                ((ProxyDirectoryRecord) tempNode).version = tempVal;
+                ((ProxyDirectoryRecord) tempNode).version = value;
             }
         } else if (qName.equalsIgnoreCase(XMLHelper.SIGNATURE)) {
-            try {
-                tempNode.signature = Base64.decode(tempVal);
-            } catch (Exception e) {
+            tempNode.signature = Base64.decode(value);
+            if (tempNode.signature == null) {
                 xmlOut.startElement(XMLHelper.EXIT_NODE);
                 xmlOut.writeTag(XMLHelper.SERVICE_ID, tempNode.serviceId + "");
                 xmlOut.writeStatus(XMLHelper.ERROR_BAD_REQUEST,
@@ -72,7 +140,14 @@ public class DirectoryRecordHandler extends DefaultHandler {
                 xmlOut.endElement(XMLHelper.EXIT_NODE);
                 errors = true;
             }
-        } else if (qName.equalsIgnoreCase(XMLHelper.ROOT)) {
+        } else if (!limited && qName.equalsIgnoreCase(DirectoryDB.CREATED)) {
+            // Only in the database file: a registration's times are the
+            // server's to set.
+            tempNode.createdTime = Long.parseLong(value.trim());
+        } else if (!limited && qName.equalsIgnoreCase(DirectoryDB.LAST_CHECKIN)) {
+            tempNode.lastCheckinTime = Long.parseLong(value.trim());
+        } else if (!limited && qName.equalsIgnoreCase(DirectoryDB.LAST_HEARTBEAT)) {
+            tempNode.mergeHeartbeat(Long.parseLong(value.trim()));
         } else {
             xmlOut.writeStatus(XMLHelper.ERROR_BAD_REQUEST, "Unrecognized Tag: " + qName);
             errors = true;
@@ -0,0 +1,310 @@
+package directoryServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.SignatureException;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.bouncycastle.util.encoders.Base64;
+import org.mortbay.io.nio.IndirectNIOBuffer;
+import org.mortbay.jetty.HttpConnection;
+import org.xml.sax.SAXException;
+
+import edu.washington.cs.oneswarm.f2f.xml.XMLHelper;
+
+/**
+ * An immutable, already signed copy of a directory listing. Listings are
+ * built once each time the database changes, in each of the listing formats,
+ * so that list requests can be answered without re-serializing or
+ * re-signing the directory. Listings also keep gzip and deflate compressed
+ * copies, and are tagged with their generation so that clients can poll with
+ * If-None-Match.
+ *
+ * The copies are kept in heap buffers and handed to the connector as they
+ * are, so serving a listing copies nothing into the heap. They are not kept
+ * in direct buffers: a snapshot is replaced on every rebuild, and direct
+ * memory is only given back once the old one has been garbage collected.
+ */
+public class DirectorySnapshot {
+    static final byte[] PLACEHOLDER = XMLHelper.DIGEST_PLACEHOLDER.getBytes();
+    private static final String GZIP = "gzip";
+    private static final String DEFLATE = "deflate";
+
+    private final long generation;
+    // Added to the ETag to tell this listing from others of its generation.
+    private final String tag;
+    // Copies of the listing, indexed by format.
+    private final ByteBuffer[] body;
+    private final ByteBuffer[] gzip;
+    private final ByteBuffer[] deflate;
+
+    private DirectorySnapshot(long generation, String tag) {
+        int formats = ListingFormat.values().length;
+        this.generation = generation;
+        this.tag = tag;
+        this.body = new ByteBuffer[formats];
+        this.gzip = new ByteBuffer[formats];
+        this.deflate = new ByteBuffer[formats];
+    }
+
+    /**
+     * Sign a full listing of the directory in each format, and compress it.
+     *
+     * @param listing
+     *            The listing.
+     * @param authority
+     *            The signers used to sign the listing.
+     */
+    public static DirectorySnapshot listing(Listing listing, SignerPool authority)
+            throws SAXException, SignatureException, IOException {
+        return listing(listing, ListingFormat.values(), authority, "");
+    }
+
+    /**
+     * Sign a listing in only some formats, and compress it. The snapshot can
+     * only be served in those formats.
+     *
+     * @param tag
+     *            Added to the ETag, to tell a listing from others of the same
+     *            generation, such as the full listing.
+     * @see #listing(Listing, SignerPool)
+     */
+    public static DirectorySnapshot listing(Listing listing, ListingFormat[] formats,
+            SignerPool authority, String tag) throws SAXException, SignatureException,
+            IOException {
+        DirectorySnapshot snapshot = new DirectorySnapshot(listing.generation, tag);
+        for (ListingFormat format : formats) {
+            ByteArrayOutputStream document = new ByteArrayOutputStream();
+            format.write(listing, document);
+            byte[] response = document.toByteArray();
+            byte[] signature = signature(format, response, response.length, authority);
+            ByteArrayOutputStream signed = new ByteArrayOutputStream(signedLength(format,
+                    response.length, signature));
+            writeSigned(format, response, response.length, signature, signed);
+            byte[] body = signed.toByteArray();
+
+            ByteArrayOutputStream gzip = new ByteArrayOutputStream(body.length / 4);
+            DeflaterOutputStream out = new GZIPOutputStream(gzip);
+            out.write(body);
+            out.close();
+            ByteArrayOutputStream deflate = new ByteArrayOutputStream(body.length / 4);
+            out = new DeflaterOutputStream(deflate);
+            out.write(body);
+            out.close();
+
+            int i = format.ordinal();
+            snapshot.body[i] = ByteBuffer.wrap(body);
+            snapshot.gzip[i] = ByteBuffer.wrap(gzip.toByteArray());
+            snapshot.deflate[i] = ByteBuffer.wrap(deflate.toByteArray());
+        }
+        return snapshot;
+    }
+
+    /**
+     * Finish, sign and send an XML response that is only used once.
+     *
+     * @param responseStream
+     *            The calling thread's buffer the response was written to.
+     * @param xmlOut
+     *            The helper writing the response. It will be closed.
+     * @param authority
+     *            The signers used to sign the response.
+     */
+    public static void send(ResponseBuffer responseStream, XMLHelper xmlOut,
+            SignerPool authority, HttpServletResponse resp) throws SAXException,
+            SignatureException, IOException {
+        xmlOut.writeDigest();
+        xmlOut.close();
+        send(ListingFormat.XML, responseStream, authority, resp);
+    }
+
+    /**
+     * Sign and send a finished response that is only used once.
+     *
+     * The response is written around its signature straight from the buffer
+     * it was built in, rather than being spliced into a new array.
+     *
+     * @param format
+     *            The format the response was written in.
+     * @param responseStream
+     *            The calling thread's buffer the response was written to.
+     * @param authority
+     *            The signers used to sign the response.
+     */
+    public static void send(ListingFormat format, ResponseBuffer responseStream,
+            SignerPool authority, HttpServletResponse resp) throws SignatureException,
+            IOException {
+        byte[] response = responseStream.buffer();
+        int length = responseStream.size();
+        byte[] signature = signature(format, response, length, authority);
+        resp.setContentLength(signedLength(format, length, signature));
+        OutputStream out = resp.getOutputStream();
+        writeSigned(format, response, length, signature, out);
+        out.flush();
+    }
+
+    /**
+     * Sign a document: Base64 encoded for formats with a placeholder, raw
+     * otherwise.
+     */
+    private static byte[] signature(ListingFormat format, byte[] response, int length,
+            SignerPool authority) throws SignatureException {
+        byte[] signature = authority.sign(response, 0, length);
+        return format.hasPlaceholder() ? Base64.encode(signature) : signature;
+    }
+
+    private static int signedLength(ListingFormat format, int length, byte[] signature) {
+        if (format.hasPlaceholder()) {
+            return length - PLACEHOLDER.length + signature.length;
+        }
+        return ListingFormat.BINARY_MAGIC.length + 1 + 2 + signature.length + length;
+    }
+
+    private static void writeSigned(ListingFormat format, byte[] response, int length,
+            byte[] signature, OutputStream out) throws SignatureException, IOException {
+        if (format.hasPlaceholder()) {
+            int pos = placeholder(response, length);
+            int remainder = pos + PLACEHOLDER.length;
+            out.write(response, 0, pos);
+            out.write(signature);
+            out.write(response, remainder, length - remainder);
+        } else {
+            out.write(ListingFormat.BINARY_MAGIC);
+            out.write(Listing.BINARY_VERSION);
+            out.write(signature.length >>> 8);
+            out.write(signature.length);
+            out.write(signature);
+            out.write(response, 0, length);
+        }
+    }
+
+    /**
+     * Find the digest placeholder. It is written just before the closing
+     * tag, so the search starts from the end and only covers the last few
+     * bytes in practice, rather than the whole response.
+     */
+    static int placeholder(byte[] response, int length) throws SignatureException {
+        search: for (int pos = length - PLACEHOLDER.length; pos >= 0; pos--) {
+            for (int i = 0; i < PLACEHOLDER.length; i++) {
+                if (response[pos + i] != PLACEHOLDER[i]) {
+                    continue search;
+                }
+            }
+            return pos;
+        }
+        throw new SignatureException("Response has no digest placeholder.");
+    }
+
+    public long generation() {
+        return generation;
+    }
+
+    /**
+     * Answer a request with this listing in the given format, or with 304 Not
+     * Modified if the client already has it, compressed if the client
+     * accepts it.
+     *
+     * Each compressed copy has its own ETag, the listing's with the encoding
+     * added, since different codings must not share a strong validator. A
+     * client holding the listing in any encoding is sent 304, with the ETag
+     * of the encoding it would have been sent now.
+     */
+    public void serve(HttpServletRequest req, HttpServletResponse resp, ListingFormat format)
+            throws IOException {
+        String listingTag = generation + tag + format.tag;
+        String encoding = acceptedEncoding(req.getHeader("Accept-Encoding"));
+        resp.setHeader("ETag", etag(listingTag, encoding));
+        resp.setHeader("Vary", "Accept, Accept-Encoding");
+        if (matches(req.getHeader("If-None-Match"), listingTag)) {
+            resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        int i = format.ordinal();
+        ByteBuffer content = body[i];
+        if (GZIP.equals(encoding)) {
+            content = gzip[i];
+            resp.setHeader("Content-Encoding", GZIP);
+        } else if (DEFLATE.equals(encoding)) {
+            content = deflate[i];
+            resp.setHeader("Content-Encoding", DEFLATE);
+        }
+        // Each request gets its own view, since sending moves its position.
+        content = content.duplicate();
+        resp.setContentType(format.contentType);
+        resp.setContentLength(content.remaining());
+        OutputStream out = resp.getOutputStream();
+        if (out instanceof HttpConnection.Output) {
+            // The connector writes the buffer to the socket itself.
+            ((HttpConnection.Output) out).sendContent(new IndirectNIOBuffer(content, true));
+        } else {
+            out.write(content.array(), content.arrayOffset() + content.position(),
+                    content.remaining());
+            out.flush();
+        }
+    }
+
+    /**
+     * The ETag of a listing sent with an encoding, or uncompressed if null.
+     */
+    private static String etag(String listingTag, String encoding) {
+        return "\"" + listingTag + (encoding == null ? "" : "-" + encoding) + "\"";
+    }
+
+    /**
+     * Whether an If-None-Match header names the listing in any encoding.
+     */
+    private static boolean matches(String ifNoneMatch, String listingTag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.equals("*") || tag.equals(etag(listingTag, null))
+                    || tag.equals(etag(listingTag, GZIP))
+                    || tag.equals(etag(listingTag, DEFLATE))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The compression to use given an Accept-Encoding header, preferring gzip,
+     * or null to send the listing uncompressed.
+     */
+    private static String acceptedEncoding(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        boolean deflateAccepted = false;
+        for (String coding : acceptEncoding.split(",")) {
+            String[] params = coding.split(";");
+            String name = params[0].trim().toLowerCase();
+            if (params.length > 1) {
+                String q = params[1].trim();
+                if (q.startsWith("q=")) {
+                    try {
+                        if (Float.parseFloat(q.substring(2)) == 0) {
+                            continue;
+                        }
+                    } catch (NumberFormatException e) {
+                        continue;
+                    }
+                }
+            }
+            if (name.equals(GZIP)) {
+                return GZIP;
+            } else if (name.equals(DEFLATE)) {
+                deflateAccepted = true;
+            }
+        }
+        return deflateAccepted ? DEFLATE : null;
+    }
+}
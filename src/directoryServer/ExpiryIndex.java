@@ -0,0 +1,85 @@
+package directoryServer;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records ordered by the time they are due to expire, so that the cleaner
+ * only has to look at the records that have actually expired. Scheduling a
+ * record again replaces its earlier deadline.
+ */
+class ExpiryIndex {
+    private static final AtomicLong sequence = new AtomicLong();
+
+    private static class Deadline implements Comparable<Deadline> {
+        final long time;
+        final DirectoryRecord record;
+        // Orders deadlines that fall in the same millisecond.
+        final long order = sequence.incrementAndGet();
+
+        Deadline(long time, DirectoryRecord record) {
+            this.time = time;
+            this.record = record;
+        }
+
+        @Override
+        public int compareTo(Deadline other) {
+            if (time != other.time) {
+                return time < other.time ? -1 : 1;
+            }
+            if (order != other.order) {
+                return order < other.order ? -1 : 1;
+            }
+            return 0;
+        }
+    }
+
+    private final ConcurrentSkipListSet<Deadline> deadlines = new ConcurrentSkipListSet<Deadline>();
+    private final ConcurrentHashMap<Long, Deadline> scheduled = new ConcurrentHashMap<Long, Deadline>();
+
+    /**
+     * Set the time at which a record expires.
+     */
+    void schedule(DirectoryRecord record, long time) {
+        Deadline deadline = new Deadline(time, record);
+        Deadline old = scheduled.put(record.serviceId, deadline);
+        if (old != null) {
+            deadlines.remove(old);
+        }
+        deadlines.add(deadline);
+    }
+
+    /**
+     * Stop tracking a record.
+     */
+    void cancel(DirectoryRecord record) {
+        Deadline old = scheduled.get(record.serviceId);
+        if (old != null && old.record == record && scheduled.remove(record.serviceId, old)) {
+            deadlines.remove(old);
+        }
+    }
+
+    /**
+     * Remove and return the records whose deadlines are at or before a time.
+     */
+    List<DirectoryRecord> expire(long now) {
+        List<DirectoryRecord> expired = new LinkedList<DirectoryRecord>();
+        Iterator<Deadline> due = deadlines.iterator();
+        while (due.hasNext()) {
+            Deadline first = due.next();
+            if (first.time > now) {
+                break;
+            }
+            due.remove();
+            // Deadlines superseded by a racing schedule are dropped.
+            if (scheduled.remove(first.record.serviceId, first)) {
+                expired.add(first.record);
+            }
+        }
+        return expired;
+    }
+}
@@ -0,0 +1,159 @@
+package directoryServer;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The compact check-in protocol. A host sends one batch of heartbeats for
+ * all its services, each a serviceId and timestamp signed with that
+ * service's own key. The directory answers with one ack giving the outcome
+ * of each. The ack names the batch it answers by its hash, and is only
+ * signed if the request asks for it with sign=true: signing costs the
+ * directory several times what checking the heartbeats does, and most hosts
+ * only need to know which services to register again.
+ *
+ * A batch is "OSHB", a version byte, a two byte count and that many
+ * heartbeats: the serviceId and timestamp (milliseconds, as given by
+ * System.currentTimeMillis) as eight byte integers, then a two byte length
+ * and the SHA1withRSA signature of signedBytes(serviceId, timestamp).
+ *
+ * The ack is "OSHA", a version byte, the SHA-1 hash of the batch it answers,
+ * a two byte count and for each heartbeat its serviceId and a status byte,
+ * then a two byte length and the directory's SHA1withRSA signature of
+ * everything before it, or a length of 0 if no signature was asked for.
+ */
+class HeartbeatBatch {
+    static final String CONTENT_TYPE = "application/x-oneswarm-heartbeat";
+    // Request parameter asking for the ack to be signed.
+    static final String PARAM_SIGN = "sign";
+    private static final byte[] MAGIC = { 'O', 'S', 'H', 'B' };
+    private static final byte[] ACK_MAGIC = { 'O', 'S', 'H', 'A' };
+    private static final int VERSION = 1;
+    private static final String ALGORITHM = "SHA1withRSA";
+    // Most heartbeats in one batch.
+    static final int MAX_HEARTBEATS = 256;
+    // Longest signature, that of a 4096 bit key.
+    private static final int MAX_SIGNATURE = 512;
+    static final int MAX_BODY = MAGIC.length + 1 + 2 + MAX_HEARTBEATS
+            * (8 + 8 + 2 + MAX_SIGNATURE);
+
+    // The outcome of each heartbeat.
+    static final byte ACCEPTED = 0;
+    static final byte UNREGISTERED = 1;
+    static final byte INVALID_SIGNATURE = 2;
+    // Replayed, or too far from the directory's clock.
+    static final byte STALE = 3;
+
+    static class Heartbeat {
+        final long serviceId;
+        final long timestamp;
+        final byte[] signature;
+        byte status;
+
+        Heartbeat(long serviceId, long timestamp, byte[] signature) {
+            this.serviceId = serviceId;
+            this.timestamp = timestamp;
+            this.signature = signature;
+        }
+
+        /**
+         * Whether the heartbeat was signed by the given key.
+         */
+        boolean verify(PublicKey key) throws GeneralSecurityException {
+            Signature verifier = Signature.getInstance(ALGORITHM);
+            verifier.initVerify(key);
+            verifier.update(signedBytes(serviceId, timestamp));
+            return verifier.verify(signature);
+        }
+    }
+
+    private HeartbeatBatch() {
+    }
+
+    /**
+     * The bytes a service signs for a heartbeat.
+     */
+    static byte[] signedBytes(long serviceId, long timestamp) {
+        return ByteBuffer.allocate(MAGIC.length + 16).put(MAGIC).putLong(serviceId)
+                .putLong(timestamp).array();
+    }
+
+    static void write(List<Heartbeat> heartbeats, OutputStream stream) throws IOException {
+        DataOutputStream out = new DataOutputStream(stream);
+        out.write(MAGIC);
+        out.writeByte(VERSION);
+        out.writeShort(heartbeats.size());
+        for (Heartbeat heartbeat : heartbeats) {
+            out.writeLong(heartbeat.serviceId);
+            out.writeLong(heartbeat.timestamp);
+            out.writeShort(heartbeat.signature.length);
+            out.write(heartbeat.signature);
+        }
+        out.flush();
+    }
+
+    /**
+     * Read a batch, which must be all that is left in the stream.
+     *
+     * @throws IOException
+     *             If the batch is malformed or too big.
+     */
+    static List<Heartbeat> read(InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        byte[] magic = new byte[MAGIC.length];
+        in.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC) || in.readUnsignedByte() != VERSION) {
+            throw new IOException("Not a heartbeat batch.");
+        }
+        int count = in.readUnsignedShort();
+        if (count > MAX_HEARTBEATS) {
+            throw new IOException("More than " + MAX_HEARTBEATS + " heartbeats.");
+        }
+        List<Heartbeat> heartbeats = new ArrayList<Heartbeat>(count);
+        for (int i = 0; i < count; i++) {
+            long serviceId = in.readLong();
+            long timestamp = in.readLong();
+            int length = in.readUnsignedShort();
+            if (length > MAX_SIGNATURE) {
+                throw new IOException("Signature too long.");
+            }
+            byte[] signature = new byte[length];
+            in.readFully(signature);
+            heartbeats.add(new Heartbeat(serviceId, timestamp, signature));
+        }
+        if (in.read() != -1) {
+            throw new IOException("Unexpected data after the heartbeats.");
+        }
+        return heartbeats;
+    }
+
+    /**
+     * Write the ack for a batch, unsigned.
+     *
+     * @param batchHash
+     *            The SHA-1 hash of the batch.
+     */
+    static void writeAck(byte[] batchHash, List<Heartbeat> heartbeats, OutputStream stream)
+            throws IOException {
+        DataOutputStream out = new DataOutputStream(stream);
+        out.write(ACK_MAGIC);
+        out.writeByte(VERSION);
+        out.write(batchHash);
+        out.writeShort(heartbeats.size());
+        for (Heartbeat heartbeat : heartbeats) {
+            out.writeLong(heartbeat.serviceId);
+            out.writeByte(heartbeat.status);
+        }
+        out.flush();
+    }
+}
@@ -0,0 +1,288 @@
+package directoryServer;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.xerces.impl.dv.util.Base64;
+import org.xml.sax.SAXException;
+
+import edu.washington.cs.oneswarm.f2f.xml.XMLHelper;
+
+/**
+ * The records in a listing, as of a generation, and the ways of writing them
+ * out. A full listing has every record. An incremental listing has the
+ * records changed since deltaFrom and the serviceIds of those removed. A
+ * page of a full listing also has the cursor of the next page.
+ *
+ * Cursors are the createdTime and serviceId of the last record on a page,
+ * which is where the next page starts in the order records are listed.
+ *
+ * The binary format is a header of the generation, deltaFrom and a
+ * dictionary of the distinct exit policies and versions, followed by the
+ * records, the removed serviceIds and the next cursor, which is empty on the
+ * last page. Keys are written as their raw X.509 encoding, without the
+ * "RSA:X.509:" prefix and Base64 they are registered with, and signatures
+ * as raw bytes. Exit policies and versions are written as indices into the
+ * dictionary. Counts, lengths and indices
+ * are unsigned varints.
+ */
+class Listing {
+    static final byte BINARY_VERSION = 2;
+    private static final byte KIND_PROXY = 1;
+    private static final byte KIND_PORT = 2;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    final long generation;
+    // The generation an incremental listing starts from, or 0.
+    final long deltaFrom;
+    // May be a live view of the records when streaming.
+    final Collection<DirectoryRecord> records;
+    final List<Long> removed;
+    // The cursor of the next page, or null.
+    final String next;
+
+    Listing(long generation, long deltaFrom, Collection<DirectoryRecord> records,
+            List<Long> removed) {
+        this(generation, deltaFrom, records, removed, null);
+    }
+
+    Listing(long generation, long deltaFrom, Collection<DirectoryRecord> records,
+            List<Long> removed, String next) {
+        this.generation = generation;
+        this.deltaFrom = deltaFrom;
+        this.records = records;
+        this.removed = removed;
+        this.next = next;
+    }
+
+    static String cursor(DirectoryRecord last) {
+        return last.createdTime + "." + last.serviceId;
+    }
+
+    /**
+     * A record that sorts where the page after a cursor starts.
+     *
+     * @throws IllegalArgumentException
+     *             If the cursor is malformed.
+     */
+    static DirectoryRecord position(String cursor) {
+        int dot = cursor.indexOf('.');
+        if (dot < 0) {
+            throw new IllegalArgumentException("Malformed cursor.");
+        }
+        DirectoryRecord position = new PortDirectoryRecord();
+        position.createdTime = Long.parseLong(cursor.substring(0, dot));
+        position.serviceId = Long.parseLong(cursor.substring(dot + 1));
+        return position;
+    }
+
+    void writeXML(XMLHelper xmlOut) throws SAXException {
+        xmlOut.writeTag(DirectoryDB.GENERATION, Long.toString(generation));
+        if (deltaFrom > 0) {
+            xmlOut.writeTag(DirectoryDB.DELTA_FROM, Long.toString(deltaFrom));
+        }
+        for (DirectoryRecord node : records) {
+            try {
+                node.fullXML(xmlOut);
+            } catch (Exception e) {
+                continue;
+            }
+        }
+        for (long serviceId : removed) {
+            xmlOut.startElement(DirectoryDB.REMOVED);
+            xmlOut.writeTag(XMLHelper.SERVICE_ID, Long.toString(serviceId));
+            xmlOut.endElement(DirectoryDB.REMOVED);
+        }
+        if (next != null) {
+            xmlOut.writeTag(DirectoryDB.NEXT_CURSOR, next);
+        }
+    }
+
+    void writeBinary(OutputStream stream) throws IOException {
+        DataOutputStream out = new DataOutputStream(stream);
+        out.writeLong(generation);
+        out.writeLong(deltaFrom);
+
+        List<DirectoryRecord> records = new ArrayList<DirectoryRecord>(this.records);
+        Map<String, Integer> dictionary = new HashMap<String, Integer>();
+        List<String> words = new ArrayList<String>();
+        for (DirectoryRecord node : records) {
+            if (node instanceof ProxyDirectoryRecord) {
+                ProxyDirectoryRecord proxy = (ProxyDirectoryRecord) node;
+                index(dictionary, words, proxy.exitPolicy);
+                index(dictionary, words, proxy.version);
+            }
+        }
+        writeVarInt(out, words.size());
+        for (String word : words) {
+            writeBytes(out, word.getBytes(UTF8));
+        }
+
+        // Records whose key can't be decoded can't be written, so they are
+        // counted first.
+        byte[][] keys = new byte[records.size()][];
+        int count = 0;
+        for (int i = 0; i < keys.length; i++) {
+            DirectoryRecord node = records.get(i);
+            keys[i] = SignatureCache.encodedKey(node.publicKey);
+            if (keys[i] != null && node.signature != null) {
+                count++;
+            }
+        }
+        writeVarInt(out, count);
+        for (int i = 0; i < keys.length; i++) {
+            DirectoryRecord node = records.get(i);
+            if (keys[i] == null || node.signature == null) {
+                continue;
+            }
+            boolean proxy = node instanceof ProxyDirectoryRecord;
+            out.writeByte(proxy ? KIND_PROXY : KIND_PORT);
+            out.writeLong(node.serviceId);
+            writeBytes(out, keys[i]);
+            writeBytes(out, node.nickname == null ? new byte[0] : node.nickname.getBytes(UTF8));
+            writeBytes(out, node.signature);
+            if (proxy) {
+                ProxyDirectoryRecord p = (ProxyDirectoryRecord) node;
+                writeVarInt(out, p.bandwidth);
+                writeVarInt(out, dictionary.get(p.exitPolicy == null ? "" : p.exitPolicy));
+                writeVarInt(out, dictionary.get(p.version == null ? "" : p.version));
+            }
+        }
+        writeVarInt(out, removed.size());
+        for (long serviceId : removed) {
+            out.writeLong(serviceId);
+        }
+        writeBytes(out, next == null ? new byte[0] : next.getBytes(UTF8));
+        out.flush();
+    }
+
+    /**
+     * Write the listing as JSON. The signature field holds the digest
+     * placeholder, to be replaced with the signature as in the XML.
+     */
+    void writeJSON(OutputStream stream) throws IOException {
+        Writer out = new OutputStreamWriter(stream, UTF8);
+        out.write("{\"generation\":");
+        out.write(Long.toString(generation));
+        if (deltaFrom > 0) {
+            out.write(",\"deltaFrom\":");
+            out.write(Long.toString(deltaFrom));
+        }
+        out.write(",\"records\":[");
+        boolean first = true;
+        for (DirectoryRecord node : records) {
+            if (node.signature == null) {
+                continue;
+            }
+            if (!first) {
+                out.write(',');
+            }
+            first = false;
+            out.write("{\"type\":");
+            string(out, node.type());
+            out.write(",\"serviceId\":");
+            out.write(Long.toString(node.serviceId));
+            out.write(",\"publicKey\":");
+            string(out, node.publicKey);
+            out.write(",\"nickname\":");
+            string(out, node.nickname);
+            if (node instanceof ProxyDirectoryRecord) {
+                ProxyDirectoryRecord proxy = (ProxyDirectoryRecord) node;
+                out.write(",\"bandwidth\":");
+                out.write(Integer.toString(proxy.bandwidth));
+                out.write(",\"exitPolicy\":");
+                string(out, proxy.exitPolicy);
+                out.write(",\"version\":");
+                string(out, proxy.version);
+            }
+            out.write(",\"signature\":");
+            string(out, Base64.encode(node.signature));
+            out.write('}');
+        }
+        out.write("],\"removed\":[");
+        first = true;
+        for (long serviceId : removed) {
+            if (!first) {
+                out.write(',');
+            }
+            first = false;
+            out.write(Long.toString(serviceId));
+        }
+        out.write(']');
+        if (next != null) {
+            out.write(",\"next\":");
+            string(out, next);
+        }
+        out.write(",\"signature\":\"");
+        out.write(XMLHelper.DIGEST_PLACEHOLDER);
+        out.write("\"}");
+        out.flush();
+    }
+
+    private static void index(Map<String, Integer> dictionary, List<String> words, String word) {
+        if (word == null) {
+            word = "";
+        }
+        if (!dictionary.containsKey(word)) {
+            dictionary.put(word, words.size());
+            words.add(word);
+        }
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] b) throws IOException {
+        writeVarInt(out, b.length);
+        out.write(b);
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static void string(Writer out, String s) throws IOException {
+        if (s == null) {
+            out.write("null");
+            return;
+        }
+        out.write('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+            case '"':
+                out.write("\\\"");
+                break;
+            case '\\':
+                out.write("\\\\");
+                break;
+            case '\n':
+                out.write("\\n");
+                break;
+            case '\r':
+                out.write("\\r");
+                break;
+            case '\t':
+                out.write("\\t");
+                break;
+            default:
+                if (c < 0x20) {
+                    out.write(String.format("\\u%04x", (int) c));
+                } else {
+                    out.write(c);
+                }
+            }
+        }
+        out.write('"');
+    }
+}
@@ -0,0 +1,106 @@
+package directoryServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.xml.sax.SAXException;
+
+import edu.washington.cs.oneswarm.f2f.xml.XMLHelper;
+
+/**
+ * The encodings a listing can be sent in, chosen by the client's Accept
+ * header. XML is sent unless the client asks for one of the others.
+ *
+ * XML and JSON listings carry the digest placeholder, which is replaced with
+ * the Base64 signature of the document. Binary listings are preceded by a
+ * header of the magic bytes "OSDL", the format version and the length of the
+ * raw signature of the rest of the listing, followed by the signature.
+ */
+enum ListingFormat {
+    XML("text/xml", ""),
+    BINARY("application/x-oneswarm-directory", "-bin"),
+    JSON("application/json", "-json");
+
+    static final byte[] BINARY_MAGIC = { 'O', 'S', 'D', 'L' };
+
+    final String contentType;
+    // Appended to the ETag of a listing in this format.
+    final String tag;
+
+    private ListingFormat(String contentType, String tag) {
+        this.contentType = contentType;
+        this.tag = tag;
+    }
+
+    /**
+     * Whether the signature replaces a placeholder in the document, rather
+     * than preceding it.
+     */
+    boolean hasPlaceholder() {
+        return this != BINARY;
+    }
+
+    /**
+     * Write a listing, unsigned.
+     */
+    void write(Listing listing, OutputStream out) throws SAXException, IOException {
+        switch (this) {
+        case XML:
+            XMLHelper xmlOut = new XMLHelper(out);
+            listing.writeXML(xmlOut);
+            xmlOut.writeDigest();
+            xmlOut.close();
+            break;
+        case BINARY:
+            listing.writeBinary(out);
+            break;
+        case JSON:
+            listing.writeJSON(out);
+            break;
+        }
+    }
+
+    /**
+     * The format the client most prefers, given its Accept header.
+     */
+    static ListingFormat accepted(String accept) {
+        if (accept == null) {
+            return XML;
+        }
+        ListingFormat best = XML;
+        float bestQ = -1;
+        for (String range : accept.split(",")) {
+            String[] params = range.split(";");
+            String type = params[0].trim().toLowerCase();
+            float q = 1;
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        q = Float.parseFloat(param.substring(2));
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+            ListingFormat format = forType(type);
+            if (format != null && q > 0 && q > bestQ) {
+                best = format;
+                bestQ = q;
+            }
+        }
+        return best;
+    }
+
+    private static ListingFormat forType(String type) {
+        if (type.equals(BINARY.contentType)) {
+            return BINARY;
+        } else if (type.equals(JSON.contentType)) {
+            return JSON;
+        } else if (type.equals(XML.contentType) || type.equals("application/xml")
+                || type.equals("text/*") || type.equals("*/*")) {
+            return XML;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,131 @@
+package directoryServer;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+
+import javax.servlet.http.HttpServletRequest;
+
+import edu.washington.cs.oneswarm.f2f.xml.XMLHelper;
+
+/**
+ * The filters a client may put on a listing: the type of record, the least
+ * bandwidth, the version and a keyword the exit policy must contain. Filters
+ * on bandwidth, version and exit policy only match exit nodes.
+ */
+class ListingQuery {
+    static final String PARAM_TYPE = "type";
+    static final String PARAM_BANDWIDTH = "bandwidth";
+    static final String PARAM_VERSION = "version";
+    static final String PARAM_EXIT_POLICY = "exitPolicy";
+    // Longest version or exit policy keyword accepted.
+    private static final int MAX_PARAM_LENGTH = 256;
+
+    // XMLHelper.EXIT_NODE, XMLHelper.SERVICE or null for either.
+    final String type;
+    final int minBandwidth;
+    final String version;
+    final String exitPolicy;
+
+    ListingQuery(String type, int minBandwidth, String version, String exitPolicy) {
+        this.type = type;
+        this.minBandwidth = minBandwidth;
+        this.version = version;
+        this.exitPolicy = exitPolicy;
+    }
+
+    /**
+     * Read the filters from a list request.
+     *
+     * @return The query, or null if the request has no filters.
+     * @throws IllegalArgumentException
+     *             If a filter is malformed.
+     */
+    static ListingQuery parse(HttpServletRequest req) {
+        String typeParam = req.getParameter(PARAM_TYPE);
+        String bandwidthParam = req.getParameter(PARAM_BANDWIDTH);
+        String version = req.getParameter(PARAM_VERSION);
+        String exitPolicy = req.getParameter(PARAM_EXIT_POLICY);
+        if (typeParam == null && bandwidthParam == null && version == null
+                && exitPolicy == null) {
+            return null;
+        }
+
+        String type = null;
+        if (typeParam != null) {
+            if (typeParam.equalsIgnoreCase(XMLHelper.EXIT_NODE)) {
+                type = XMLHelper.EXIT_NODE;
+            } else if (typeParam.equalsIgnoreCase(XMLHelper.SERVICE)) {
+                type = XMLHelper.SERVICE;
+            } else {
+                throw new IllegalArgumentException("Unknown type " + typeParam);
+            }
+        }
+        int minBandwidth = 0;
+        if (bandwidthParam != null) {
+            minBandwidth = Integer.parseInt(bandwidthParam);
+            if (minBandwidth < 0) {
+                throw new IllegalArgumentException("Negative bandwidth.");
+            }
+        }
+        if ((version != null && version.length() > MAX_PARAM_LENGTH)
+                || (exitPolicy != null && exitPolicy.length() > MAX_PARAM_LENGTH)) {
+            throw new IllegalArgumentException("Parameter too long.");
+        }
+        return new ListingQuery(type, minBandwidth, version, exitPolicy);
+    }
+
+    /**
+     * Whether the query can only match exit nodes.
+     */
+    boolean exitNodesOnly() {
+        return XMLHelper.EXIT_NODE.equals(type) || minBandwidth > 0 || version != null
+                || exitPolicy != null;
+    }
+
+    boolean matches(DirectoryRecord record) {
+        if (type != null && !type.equals(record.type())) {
+            return false;
+        }
+        if (!exitNodesOnly()) {
+            return true;
+        }
+        if (!(record instanceof ProxyDirectoryRecord)) {
+            return false;
+        }
+        ProxyDirectoryRecord proxy = (ProxyDirectoryRecord) record;
+        return proxy.bandwidth >= minBandwidth
+                && (version == null || version.equals(proxy.version))
+                && (exitPolicy == null || (proxy.exitPolicy != null && proxy.exitPolicy
+                        .contains(exitPolicy)));
+    }
+
+    /**
+     * A string identifying the query, for caching its results.
+     */
+    String key() {
+        StringBuilder key = new StringBuilder();
+        key.append(type).append('|').append(minBandwidth);
+        appendParam(key, version);
+        appendParam(key, exitPolicy);
+        return key.toString();
+    }
+
+    /**
+     * The query's key in a form that can go in an ETag.
+     */
+    String tag() {
+        try {
+            return "-q" + URLEncoder.encode(key(), "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void appendParam(StringBuilder key, String param) {
+        // Lengths keep parameters containing '|' from being confused.
+        key.append('|');
+        if (param != null) {
+            key.append(param.length()).append(':').append(param);
+        }
+    }
+}
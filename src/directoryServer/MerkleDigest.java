@@ -0,0 +1,130 @@
+package directoryServer;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A Merkle tree over the registered records, used by partners to find which
+ * parts of the directory they disagree on.
+ *
+ * Records are spread over a fixed number of buckets by a hash of their
+ * serviceId. Each leaf is the XOR of the hashes of the records in its
+ * bucket, so it can be kept up to date as records come and go. Nodes of the
+ * tree are numbered from 1 at the root, with the children of node i at 2i
+ * and 2i + 1, so the leaves are nodes LEAVES to 2 * LEAVES - 1.
+ */
+class MerkleDigest {
+    static final int DEPTH = 8;
+    static final int LEAVES = 1 << DEPTH;
+
+    private final long[] leaves = new long[LEAVES];
+    private final List<Map<Long, DirectoryRecord>> buckets;
+
+    MerkleDigest() {
+        buckets = new ArrayList<Map<Long, DirectoryRecord>>(LEAVES);
+        for (int i = 0; i < LEAVES; i++) {
+            buckets.add(new HashMap<Long, DirectoryRecord>());
+        }
+    }
+
+    static int bucketOf(long serviceId) {
+        return (int) (mix(serviceId) & (LEAVES - 1));
+    }
+
+    /**
+     * Add a record, replacing any other record with its serviceId.
+     */
+    void add(DirectoryRecord record) {
+        int b = bucketOf(record.serviceId);
+        Map<Long, DirectoryRecord> bucket = buckets.get(b);
+        synchronized (bucket) {
+            DirectoryRecord old = bucket.put(record.serviceId, record);
+            if (old != null) {
+                leaves[b] ^= hash(old);
+            }
+            leaves[b] ^= hash(record);
+        }
+    }
+
+    /**
+     * Remove a record, if it has not already been replaced.
+     */
+    void remove(DirectoryRecord record) {
+        int b = bucketOf(record.serviceId);
+        Map<Long, DirectoryRecord> bucket = buckets.get(b);
+        synchronized (bucket) {
+            if (bucket.get(record.serviceId) == record) {
+                bucket.remove(record.serviceId);
+                leaves[b] ^= hash(record);
+            }
+        }
+    }
+
+    /**
+     * The hashes of the given nodes of the tree.
+     */
+    long[] nodes(List<Integer> indices) {
+        long[] tree = new long[2 * LEAVES];
+        for (int i = 0; i < LEAVES; i++) {
+            Map<Long, DirectoryRecord> bucket = buckets.get(i);
+            synchronized (bucket) {
+                tree[LEAVES + i] = leaves[i];
+            }
+        }
+        for (int i = LEAVES - 1; i > 0; i--) {
+            tree[i] = mix(tree[2 * i] * 0x9E3779B97F4A7C15L + tree[2 * i + 1]);
+        }
+        long[] hashes = new long[indices.size()];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = tree[indices.get(i)];
+        }
+        return hashes;
+    }
+
+    /**
+     * The records in a bucket.
+     */
+    List<DirectoryRecord> bucket(int b) {
+        Map<Long, DirectoryRecord> bucket = buckets.get(b);
+        synchronized (bucket) {
+            return new ArrayList<DirectoryRecord>(bucket.values());
+        }
+    }
+
+    /**
+     * A hash of the parts of a record that are the same on every instance.
+     * Check-in times are left out, since they are always changing.
+     */
+    private static long hash(DirectoryRecord record) {
+        try {
+            MessageDigest sha = MessageDigest.getInstance("SHA-1");
+            sha.update(ByteBuffer.allocate(8).putLong(record.serviceId).array());
+            if (record.publicKey != null) {
+                sha.update(record.publicKey.getBytes("UTF-8"));
+            }
+            if (record.signature != null) {
+                sha.update(record.signature);
+            }
+            return ByteBuffer.wrap(sha.digest()).getLong();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
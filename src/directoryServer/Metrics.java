@@ -0,0 +1,113 @@
+package directoryServer;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectName;
+
+/**
+ * The server's counters, histograms and gauges, by name. Callers keep the
+ * counters and histograms they update, so updating one is a few atomic
+ * operations.
+ *
+ * Everything is reported as a flat set of named values: counters and gauges
+ * under their own names, and histograms as their count, mean, percentiles
+ * and maximum, in microseconds. These are shown by the "stats" console
+ * command, the metrics action and the directoryServer:type=Metrics MBean.
+ */
+final class Metrics {
+    /**
+     * A value read when metrics are reported, such as the length of a queue.
+     */
+    interface Gauge {
+        long value();
+    }
+
+    private static final ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<String, AtomicLong>();
+    private static final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+    private static final ConcurrentMap<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>();
+
+    private Metrics() {
+    }
+
+    static AtomicLong counter(String name) {
+        AtomicLong counter = counters.get(name);
+        if (counter == null) {
+            counters.putIfAbsent(name, new AtomicLong());
+            counter = counters.get(name);
+        }
+        return counter;
+    }
+
+    static Histogram histogram(String name) {
+        Histogram histogram = histograms.get(name);
+        if (histogram == null) {
+            histograms.putIfAbsent(name, new Histogram());
+            histogram = histograms.get(name);
+        }
+        return histogram;
+    }
+
+    /**
+     * Add a gauge, replacing any other with the same name.
+     */
+    static void gauge(String name, Gauge gauge) {
+        gauges.put(name, gauge);
+    }
+
+    /**
+     * The current value of every metric, sorted by name.
+     */
+    static Map<String, Long> values() {
+        Map<String, Long> values = new TreeMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> counter : counters.entrySet()) {
+            values.put(counter.getKey(), counter.getValue().get());
+        }
+        for (Map.Entry<String, Gauge> gauge : gauges.entrySet()) {
+            try {
+                values.put(gauge.getKey(), gauge.getValue().value());
+            } catch (RuntimeException e) {
+                // A gauge over something that has gone away.
+            }
+        }
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            String name = entry.getKey();
+            Histogram histogram = entry.getValue();
+            values.put(name + ".count", histogram.count());
+            values.put(name + ".mean_us", histogram.mean());
+            values.put(name + ".p50_us", histogram.percentile(0.5));
+            values.put(name + ".p99_us", histogram.percentile(0.99));
+            values.put(name + ".p999_us", histogram.percentile(0.999));
+            values.put(name + ".max_us", histogram.max());
+        }
+        return values;
+    }
+
+    /**
+     * Every metric, one "name value" pair per line.
+     */
+    static String report() {
+        StringBuilder report = new StringBuilder();
+        for (Map.Entry<String, Long> value : values().entrySet()) {
+            report.append(value.getKey()).append(' ').append(value.getValue()).append('\n');
+        }
+        return report.toString();
+    }
+
+    /**
+     * Make the metrics visible over JMX.
+     */
+    static void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(),
+                    new ObjectName("directoryServer:type=Metrics"));
+        } catch (Exception e) {
+            System.err.println("Unable to register the metrics MBean.");
+            e.printStackTrace();
+        }
+    }
+}
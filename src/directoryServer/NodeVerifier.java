@@ -1,19 +1,75 @@
 package directoryServer;
 
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class NodeVerifier implements Callable<Boolean> {
+    private static final int THREADS = 4;
+    // Registrations allowed to wait for verification before new ones are
+    // turned away.
+    private static final int QUEUE_DEPTH = 1000;
+    private static final AtomicLong REJECTED = Metrics.counter("verifier.rejected");
+
+    private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(THREADS, THREADS,
+            60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(QUEUE_DEPTH));
+    static {
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Receives the outcome of an asynchronous verification.
+     */
+    public interface Listener {
+        /**
+         * @param record
+         *            The record that was verified.
+         * @param accepted
+         *            Whether the record can be assumed to be legitimate.
+         */
+        void verified(DirectoryRecord record, boolean accepted);
+    }
+
     /**
-     * Verify an exit node record. A final return value of true indicates the
-     * record can be assumed to be legitimate.
-     * 
+     * Verify an exit node record on the verifier threads. A final outcome of
+     * true indicates the record can be assumed to be legitimate.
+     *
      * @param record
      *            The Published record to verify.
-     * @return A future task indicating the progress of verification.
+     * @param listener
+     *            Told the outcome once verification finishes.
+     * @return False if too many records are already waiting, in which case
+     *         the listener will not be called.
      */
-    public static FutureTask<Boolean> verify(DirectoryRecord record) {
-        return new FutureTask<Boolean>(new NodeVerifier(record));
+    public static boolean verify(final DirectoryRecord record, final Listener listener) {
+        FutureTask<Boolean> task = new FutureTask<Boolean>(new NodeVerifier(record)) {
+            @Override
+            protected void done() {
+                boolean accepted;
+                try {
+                    accepted = get();
+                } catch (Exception e) {
+                    accepted = false;
+                }
+                listener.verified(record, accepted);
+            }
+        };
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            REJECTED.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /** The number of records waiting to be verified. */
+    public static int queueDepth() {
+        return executor.getQueue().size();
     }
 
     private final DirectoryRecord record;
@@ -40,4 +96,4 @@ public class NodeVerifier implements Callable<Boolean> {
             return false;
         }
     }
-}
\ No newline at end of file
+}
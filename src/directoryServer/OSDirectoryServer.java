@@ -1,28 +1,29 @@
 package directoryServer;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
 import java.math.BigInteger;
 import java.security.cert.Certificate;
+import java.security.DigestInputStream;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
 import java.security.KeyStore;
 import java.security.KeyStore.PasswordProtection;
+import java.security.MessageDigest;
 import java.security.PrivateKey;
 import java.security.SecureRandom;
 import java.security.Security;
 import java.security.Signature;
 import java.security.SignatureException;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
@@ -41,11 +42,11 @@ import org.mortbay.jetty.Request;
 import org.mortbay.jetty.Server;
 import org.mortbay.jetty.handler.AbstractHandler;
 import org.mortbay.jetty.nio.SelectChannelConnector;
+import org.mortbay.management.MBeanContainer;
 import org.mortbay.thread.QueuedThreadPool;
 import org.xml.sax.SAXException;
 import org.xml.sax.SAXParseException;
 
-import edu.washington.cs.oneswarm.f2f.xml.Utils;
 import edu.washington.cs.oneswarm.f2f.xml.XMLHelper;
 
 /**
@@ -64,21 +65,55 @@ public class OSDirectoryServer implements Runnable {
     private static final String CHECK_IN = "checkin";
     private static final String REGISTER = "register";
     private static final String LIST_NODES = "list";
-    // TODO (nick) Add incremental update functionality and make a spec for
-    // Nodes deleted
-    // since last update
+    // Checks in a batch of services with signed timestamps. See HeartbeatBatch.
+    private static final String HEARTBEAT = "heartbeat";
+    // Asks for PARAM_COUNT exit nodes picked in proportion to bandwidth.
+    private static final String SAMPLE = "sample";
+    private static final String PARAM_COUNT = "n";
+    private static final int MAX_SAMPLE = 64;
+    // Lists at most PARAM_LIMIT records, starting after PARAM_CURSOR.
+    private static final String PARAM_LIMIT = "limit";
+    private static final String PARAM_CURSOR = "cursor";
+    private static final int MAX_PAGE = 1000;
+    // Sends the full listing as it is written, signing it along the way.
+    private static final String PARAM_STREAM = "stream";
+    // Reports the metrics as plain text, only to this machine unless
+    // directory.metrics.public is set, since they show how to load it.
+    private static final String METRICS = "metrics";
+    private static final boolean PUBLIC_METRICS = Boolean.getBoolean("directory.metrics.public");
+
+    // Time taken to answer each action.
+    private static final Histogram LIST_LATENCY = Metrics.histogram("request.list");
+    private static final Histogram SAMPLE_LATENCY = Metrics.histogram("request.sample");
+    private static final Histogram REGISTER_LATENCY = Metrics.histogram("request.register");
+    private static final Histogram CHECK_IN_LATENCY = Metrics.histogram("request.checkin");
+    private static final Histogram HEARTBEAT_LATENCY = Metrics.histogram("request.heartbeat");
+    private static final Histogram OTHER_LATENCY = Metrics.histogram("request.other");
+    // Registrations each address may make at once, and then each second.
+    private static final int REGISTER_BURST = Integer.getInteger("directory.register.burst", 10);
+    private static final double REGISTER_RATE = Double.parseDouble(System.getProperty(
+            "directory.register.rate", "0.1"));
+    private static final int MAX_LIMITED_ADDRESSES = 256 * 1024;
+    // Whether registrations from this machine skip the limit, for load tests.
+    private static final boolean EXEMPT_LOOPBACK = Boolean
+            .getBoolean("directory.register.exempt_loopback");
+    private static final int SC_TOO_MANY_REQUESTS = 429;
+    private static final AtomicLong LIMITED = Metrics.counter("request.register.limited");
+    // The generation of the last listing a client received. Clients that are
+    // not too far behind get only the records changed and removed since.
     private static final String LAST_UPDATE = "lastUpdate";
 
     public final Server jettyServer = new Server();
     DirectoryDB db;
 
-    private OSDirectoryServer(int port, Signature authority, Signature verifier) throws ParserConfigurationException, SAXException,
+    private OSDirectoryServer(int port, SignerPool authority, Signature verifier) throws ParserConfigurationException, SAXException,
             IOException {
     	OSDirectoryServer.instance = this;
     	XMLHelper.validateDigest = false;
 
         db = new DirectoryDB(authority, verifier);
-        new Thread(new ServiceConsole(db)).start();
+        new Thread(new ServiceConsole(db, authority)).start();
+        registerMetrics(authority);
 
         /* Define thread pool for the web server. */
         QueuedThreadPool threadPool = new QueuedThreadPool();
@@ -99,14 +134,55 @@ public class OSDirectoryServer implements Runnable {
 
         /* Define handlers for the web server. */
         jettyServer.addHandler(new DirectoryRequestHandler(authority));
+
+        /* Expose the web server's own statistics over JMX as well. */
+        MBeanContainer mbeans = new MBeanContainer(ManagementFactory.getPlatformMBeanServer());
+        jettyServer.getContainer().addEventListener(mbeans);
+        mbeans.start();
+    }
+
+    private static void registerMetrics(final SignerPool authority) {
+        Metrics.gauge("signer.signatures", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return authority.getSignatures();
+            }
+        });
+        Metrics.gauge("signer.contended", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return authority.getContended();
+            }
+        });
+        Metrics.gauge("signer.wait_us", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return authority.getWaitNanos() / 1000;
+            }
+        });
+        Metrics.gauge("verifier.queue", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return NodeVerifier.queueDepth();
+            }
+        });
+        Metrics.registerMBean();
     }
 
     private class DirectoryRequestHandler extends AbstractHandler {
-    	private final Signature authority;
+    	private final SignerPool authority;
+        private final RateLimiter registrations = new RateLimiter(REGISTER_RATE,
+                REGISTER_BURST, MAX_LIMITED_ADDRESSES);
 
-    	protected DirectoryRequestHandler(Signature authority) {
+    	protected DirectoryRequestHandler(SignerPool authority) {
     		super();
     		this.authority = authority;
+            Metrics.gauge("request.register.addresses", new Metrics.Gauge() {
+                @Override
+                public long value() {
+                    return registrations.size();
+                }
+            });
     	}
 
         @Override
@@ -116,67 +192,269 @@ public class OSDirectoryServer implements Runnable {
             Request request = (req instanceof Request) ? (Request) req : HttpConnection
                     .getCurrentConnection().getRequest();
 
-            // Map of GET method parameters
-            Map<String, String> parameters = new HashMap<String, String>();
-            for (Object keyObj : request.getParameterMap().keySet()) {
-                String key = (keyObj instanceof String) ? (String) keyObj : "";
-                String value = request.getParameter(key);
-                if (key != null && value != null) {
-                    parameters.put(key, value);
-                }
+            // Check for the action parameter and do action
+            String action = request.getParameter(PARAM_ACTION);
+            if (action == null) {
+                return;
             }
+            Histogram latency = latencyOf(action);
+            long start = System.nanoTime();
             try {
-
-                // Check for the action parameter and do action
-                if (parameters.containsKey(PARAM_ACTION)) {
-                	ByteArrayOutputStream responseStream = new ByteArrayOutputStream();
-                    XMLHelper xmlOut = new XMLHelper(responseStream);
-                    String action = parameters.get(PARAM_ACTION);
-                    if (action.equals(CHECK_IN)) {
-                        handleRegisterAction(true, request.getInputStream(), xmlOut);
-                    } else if (action.equals(REGISTER)) {
-                        handleRegisterAction(false, request.getInputStream(), xmlOut);
-                    } else if (action.equals(LIST_NODES)) {
-                        long lastUpdate = parameters.containsKey(LAST_UPDATE) ? Long
-                                .parseLong(parameters.get(LAST_UPDATE)) : 0l;
-                        db.getUpdatesSince(lastUpdate, xmlOut);
-                    } else {
-                        xmlOut.writeStatus(XMLHelper.ERROR_BAD_REQUEST, "Invalid Operation");
-                    }
-                    xmlOut.writeDigest();
-                    xmlOut.close();
-                    byte[] response = responseStream.toByteArray();
-                    byte[] sig;
-                    synchronized(authority) {
-                    	authority.update(response);
-                    	sig = authority.sign();
-                    }
-                    int pos = Utils.lastIndexOf(response, XMLHelper.DIGEST_PLACEHOLDER.getBytes());
-                    int remainder = pos + XMLHelper.DIGEST_PLACEHOLDER.getBytes().length;
-                    request.setHandled(true);
-                    
-                    resp.getOutputStream().write(response, 0, pos);
-                    resp.getOutputStream().write(Base64.encode(sig), 0, sig.length);
-                    resp.getOutputStream().write(response, remainder, response.length - remainder);
-                    
-                    resp.getOutputStream().flush();
-                }
+                handleAction(action, request, resp);
             } catch (SAXException e) {
                 request.setHandled(false);
             } catch (SignatureException e) {
             	request.setHandled(false);
 				e.printStackTrace();
-			}
+			} finally {
+                latency.recordSince(start);
+            }
+        }
+
+        private boolean isLoopback(String address) {
+            return address.startsWith("127.") || address.equals("::1")
+                    || address.equals("0:0:0:0:0:0:0:1");
         }
 
-        private void handleRegisterAction(boolean justCheckIn, InputStream xmlIn, XMLHelper xmlOut)
-                throws SAXException {
+        private Histogram latencyOf(String action) {
+            if (action.equals(LIST_NODES)) {
+                return LIST_LATENCY;
+            } else if (action.equals(SAMPLE)) {
+                return SAMPLE_LATENCY;
+            } else if (action.equals(REGISTER)) {
+                return REGISTER_LATENCY;
+            } else if (action.equals(CHECK_IN)) {
+                return CHECK_IN_LATENCY;
+            } else if (action.equals(HEARTBEAT)) {
+                return HEARTBEAT_LATENCY;
+            }
+            return OTHER_LATENCY;
+        }
+
+        private void handleAction(String action, Request request, HttpServletResponse resp)
+                throws SAXException, SignatureException, IOException {
+            String lastUpdateParam = request.getParameter(LAST_UPDATE);
+            long lastUpdate;
             try {
-                List<DirectoryRecord> newNodes = new LinkedList<DirectoryRecord>();
-                XMLHelper.parse(xmlIn, new DirectoryRecordHandler(newNodes, xmlOut), null);
-                if (newNodes.size() > 1) {
-                	throw new Exception("Invalid Registration.");
+                lastUpdate = lastUpdateParam != null ? Long.parseLong(lastUpdateParam) : 0l;
+            } catch (NumberFormatException e) {
+                sendStatus(request, resp, XMLHelper.ERROR_BAD_REQUEST, "Invalid lastUpdate: "
+                        + lastUpdateParam);
+                return;
+            }
+            if (action.equals(LIST_NODES)) {
+                handleListAction(lastUpdate, request, resp);
+                return;
+            }
+            if (action.equals(SAMPLE)) {
+                handleSampleAction(request, resp);
+                return;
+            }
+            if (action.equals(METRICS)
+                    && (PUBLIC_METRICS || isLoopback(request.getRemoteAddr()))) {
+                request.setHandled(true);
+                resp.setContentType("text/plain");
+                resp.getOutputStream().write(Metrics.report().getBytes("UTF-8"));
+                return;
+            }
+            if (action.equals(HEARTBEAT)) {
+                handleHeartbeatAction(request, resp);
+                return;
+            }
+            if (action.equals(REGISTER)
+                    && !(EXEMPT_LOOPBACK && isLoopback(request.getRemoteAddr()))) {
+                long wait = registrations.acquire(request.getRemoteAddr());
+                if (wait > 0) {
+                    // Turned away before any parsing or signing.
+                    LIMITED.incrementAndGet();
+                    request.setHandled(true);
+                    resp.setStatus(SC_TOO_MANY_REQUESTS);
+                    resp.setHeader("Retry-After", Long.toString((wait + 999) / 1000));
+                    return;
                 }
+            }
+
+            ResponseBuffer responseStream = ResponseBuffer.get();
+            XMLHelper xmlOut = new XMLHelper(responseStream);
+            if (action.equals(CHECK_IN)) {
+                handleRegisterAction(true, request, xmlOut);
+            } else if (action.equals(REGISTER)) {
+                handleRegisterAction(false, request, xmlOut);
+            } else {
+                xmlOut.writeStatus(XMLHelper.ERROR_BAD_REQUEST, "Invalid Operation");
+            }
+            request.setHandled(true);
+            DirectorySnapshot.send(responseStream, xmlOut, authority, resp);
+        }
+
+        private void handleListAction(long lastUpdate, Request request, HttpServletResponse resp)
+                throws SAXException, SignatureException, IOException {
+            ListingFormat format = ListingFormat.accepted(request.getHeader("Accept"));
+            ListingQuery query;
+            try {
+                query = ListingQuery.parse(request);
+            } catch (IllegalArgumentException e) {
+                sendStatus(request, resp, XMLHelper.ERROR_BAD_REQUEST, "Invalid Query: "
+                        + e.getMessage());
+                return;
+            }
+            if (query != null) {
+                // Filtered listings are always full listings of the matches.
+                request.setHandled(true);
+                db.query(query, format).serve(request, resp, format);
+                return;
+            }
+
+            String limitParam = request.getParameter(PARAM_LIMIT);
+            String cursor = request.getParameter(PARAM_CURSOR);
+            if (limitParam != null || cursor != null) {
+                int limit;
+                DirectoryRecord after;
+                try {
+                    limit = limitParam == null ? MAX_PAGE : Integer.parseInt(limitParam);
+                    if (limit <= 0 || limit > MAX_PAGE) {
+                        throw new IllegalArgumentException("Page size must be from 1 to "
+                                + MAX_PAGE + ".");
+                    }
+                    after = cursor == null ? null : Listing.position(cursor);
+                } catch (IllegalArgumentException e) {
+                    sendStatus(request, resp, XMLHelper.ERROR_BAD_REQUEST, "Invalid Page: "
+                            + e.getMessage());
+                    return;
+                }
+                ResponseBuffer responseStream = ResponseBuffer.get();
+                format.write(db.page(after, limit), responseStream);
+                request.setHandled(true);
+                resp.setContentType(format.contentType);
+                DirectorySnapshot.send(format, responseStream, authority, resp);
+                return;
+            }
+
+            if (Boolean.parseBoolean(request.getParameter(PARAM_STREAM))
+                    && format.hasPlaceholder() && !db.hasUpdatesSince(lastUpdate)) {
+                // Sent as it is written, with no Content-Length, so the
+                // listing is never held in memory.
+                request.setHandled(true);
+                resp.setContentType(format.contentType);
+                SigningOutputStream out = new SigningOutputStream(resp.getOutputStream(),
+                        authority.newDigest());
+                format.write(db.liveListing(), out);
+                out.finish(authority);
+                return;
+            }
+
+            if (lastUpdate != 0 && lastUpdate == db.generation()) {
+                // The client is up to date.
+                request.setHandled(true);
+                resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return;
+            }
+
+            if (!db.hasUpdatesSince(lastUpdate)) {
+                // Full listings are served from the pre-signed snapshot.
+                DirectorySnapshot snapshot = db.getSnapshot();
+                if (snapshot != null) {
+                    request.setHandled(true);
+                    snapshot.serve(request, resp, format);
+                    return;
+                }
+            }
+
+            ResponseBuffer responseStream = ResponseBuffer.get();
+            format.write(db.listingSince(lastUpdate), responseStream);
+            request.setHandled(true);
+            resp.setContentType(format.contentType);
+            DirectorySnapshot.send(format, responseStream, authority, resp);
+        }
+
+        private void handleSampleAction(Request request, HttpServletResponse resp)
+                throws SAXException, SignatureException, IOException {
+            int n;
+            try {
+                n = Integer.parseInt(request.getParameter(PARAM_COUNT));
+            } catch (NumberFormatException e) {
+                n = 0;
+            }
+            if (n <= 0 || n > MAX_SAMPLE) {
+                sendStatus(request, resp, XMLHelper.ERROR_BAD_REQUEST,
+                        "Sample size must be from 1 to " + MAX_SAMPLE + ".");
+                return;
+            }
+
+            ListingFormat format = ListingFormat.accepted(request.getHeader("Accept"));
+            ResponseBuffer responseStream = ResponseBuffer.get();
+            format.write(db.sample(n), responseStream);
+            request.setHandled(true);
+            resp.setContentType(format.contentType);
+            DirectorySnapshot.send(format, responseStream, authority, resp);
+        }
+
+        /**
+         * Check in a batch of services, and send an ack signed once for the
+         * whole batch. Nothing is parsed as XML, and each heartbeat costs one
+         * signature check rather than a signature of its own.
+         */
+        private void handleHeartbeatAction(Request request, HttpServletResponse resp)
+                throws SignatureException, IOException {
+            request.setHandled(true);
+            if (request.getContentLength() > HeartbeatBatch.MAX_BODY) {
+                resp.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+                return;
+            }
+            MessageDigest batchHash = authority.newDigest();
+            List<HeartbeatBatch.Heartbeat> heartbeats;
+            try {
+                heartbeats = HeartbeatBatch.read(new DigestInputStream(new BoundedInputStream(
+                        request.getInputStream(), HeartbeatBatch.MAX_BODY), batchHash));
+            } catch (IOException e) {
+                resp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+                return;
+            }
+            for (HeartbeatBatch.Heartbeat heartbeat : heartbeats) {
+                heartbeat.status = db.checkIn(heartbeat);
+            }
+
+            ResponseBuffer responseStream = ResponseBuffer.get();
+            HeartbeatBatch.writeAck(batchHash.digest(), heartbeats, responseStream);
+            byte[] signature = new byte[0];
+            if (Boolean.parseBoolean(request.getParameter(HeartbeatBatch.PARAM_SIGN))) {
+                signature = authority.sign(responseStream.buffer(), 0, responseStream.size());
+            }
+            resp.setContentType(HeartbeatBatch.CONTENT_TYPE);
+            resp.setContentLength(responseStream.size() + 2 + signature.length);
+            OutputStream out = resp.getOutputStream();
+            out.write(responseStream.buffer(), 0, responseStream.size());
+            out.write(signature.length >>> 8);
+            out.write(signature.length);
+            out.write(signature);
+            out.flush();
+        }
+
+        /**
+         * Send a signed response holding only a status.
+         */
+        private void sendStatus(Request request, HttpServletResponse resp, int status,
+                String message) throws SAXException, SignatureException, IOException {
+            ResponseBuffer responseStream = ResponseBuffer.get();
+            XMLHelper xmlOut = new XMLHelper(responseStream);
+            xmlOut.writeStatus(status, message);
+            request.setHandled(true);
+            DirectorySnapshot.send(responseStream, xmlOut, authority, resp);
+        }
+
+        private void handleRegisterAction(boolean justCheckIn, HttpServletRequest req,
+                XMLHelper xmlOut) throws SAXException {
+            if (req.getContentLength() > DirectoryRecordHandler.MAX_BODY) {
+                xmlOut.writeStatus(XMLHelper.ERROR_BAD_REQUEST, "Request too large.");
+                return;
+            }
+            BoundedInputStream xmlIn = null;
+            try {
+                xmlIn = new BoundedInputStream(req.getInputStream(),
+                        DirectoryRecordHandler.MAX_BODY);
+                List<DirectoryRecord> newNodes = new LinkedList<DirectoryRecord>();
+                XMLHelper.parse(xmlIn, new DirectoryRecordHandler(newNodes, xmlOut, true),
+                        null);
                 for (DirectoryRecord node : newNodes) {
                     xmlOut.startElement(node.type());
                     xmlOut.writeTag(XMLHelper.SERVICE_ID, node.serviceId + "");
@@ -187,8 +465,13 @@ public class OSDirectoryServer implements Runnable {
                     }
                     xmlOut.endElement(node.type());
                 }
-                db.saveEdits();
+            } catch (DirectoryRecordHandler.LimitException e) {
+                xmlOut.writeStatus(XMLHelper.ERROR_BAD_REQUEST, e.getMessage());
             } catch (SAXParseException e) {
+                if (xmlIn != null && xmlIn.exceeded()) {
+                    xmlOut.writeStatus(XMLHelper.ERROR_BAD_REQUEST, "Request too large.");
+                    return;
+                }
                 // These are XML errors such as
                 // "Unexpected End of File"
                 xmlOut.writeStatus(XMLHelper.ERROR_BAD_REQUEST,
@@ -251,8 +534,7 @@ public class OSDirectoryServer implements Runnable {
             }
 
             PrivateKey privateKey = ((KeyStore.PrivateKeyEntry) store.getEntry("signingkey", new PasswordProtection(new char[] {}))).getPrivateKey();
-            Signature me = java.security.Signature.getInstance("SHA1withRSA");
-            me.initSign(privateKey);
+            SignerPool me = new SignerPool(privateKey, Runtime.getRuntime().availableProcessors());
             Signature you = java.security.Signature.getInstance("SHA1withRSA");
             you.initVerify(store.getCertificate("signingcert"));
             
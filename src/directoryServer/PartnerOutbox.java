@@ -0,0 +1,308 @@
+package directoryServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.LinkedList;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * The queue of signed bundles waiting to be sent to one partner, along with
+ * the thread that sends them.
+ *
+ * Every bundle is appended to the partner's outbox file as it is queued,
+ * and the file's header records how far sending has got, so bundles queued
+ * before a restart are sent after it and those already delivered are not
+ * sent again. The file is forced to disk as the journal is, according to the
+ * "directory.journal.fsync" property. Up to a fixed number of bytes of the
+ * waiting bundles are also held in memory, so they are sent without being
+ * read back. Beyond that, and until the partner has caught up again, they
+ * are read from the file, so a slow or unreachable partner costs disk rather
+ * than heap. Failed sends are retried with exponential backoff, so bundles
+ * are delivered in order.
+ *
+ * The file is emptied whenever the partner catches up. If it never quite
+ * does, the waiting bundles are moved down to the front of the file once
+ * those already sent take up more room than they do, and more than
+ * SHIFT_THRESHOLD bytes.
+ */
+class PartnerOutbox implements Runnable {
+	private static final int MIN_BACKOFF = 500;
+	private static final int MAX_BACKOFF = 60 * 1000;
+	private static final int TIMEOUT = 10 * 1000;
+	// The file starts with the offsets of the next bundle to send and of the
+	// end of the last one queued. Anything after that is a bundle cut short.
+	private static final int HEADER = 16;
+	private static final long SHIFT_THRESHOLD = 16 * 1024 * 1024;
+	private static final int COPY_BUFFER = 64 * 1024;
+
+	private final URL partner;
+	private final long memoryCap;
+	private final RandomAccessFile file;
+	private final RecordJournal.FsyncPolicy policy = RecordJournal.fsyncPolicy();
+
+	// The first of the waiting bundles, starting with the next to send.
+	private final LinkedList<byte[]> memory = new LinkedList<byte[]>();
+	private long memoryBytes;
+	// Offsets of the next unsent bundle in the file and of the end of the last.
+	private long readOffset;
+	private long writeOffset;
+	private boolean dirty;
+
+	PartnerOutbox(URL partner, File outboxFile, long memoryCap) throws IOException {
+		this.partner = partner;
+		this.memoryCap = memoryCap;
+		this.file = new RandomAccessFile(outboxFile, "rw");
+		// Bundles left over from before a restart are sent first.
+		if (file.length() >= HEADER) {
+			readOffset = file.readLong();
+			writeOffset = file.readLong();
+		}
+		if (readOffset < HEADER || readOffset > writeOffset || writeOffset > file.length()) {
+			if (file.length() > 0) {
+				System.err.println("Discarding unreadable outbox " + outboxFile);
+			}
+			reset();
+		}
+	}
+
+	void start() {
+		Thread sender = new Thread(this, "Coordination sender " + partner);
+		sender.setDaemon(true);
+		sender.start();
+
+		if (policy == RecordJournal.FsyncPolicy.INTERVAL) {
+			Timer syncer = new Timer("Outbox sync " + partner, true);
+			syncer.schedule(new TimerTask() {
+				@Override
+				public void run() {
+					sync();
+				}
+			}, RecordJournal.FSYNC_INTERVAL, RecordJournal.FSYNC_INTERVAL);
+		}
+	}
+
+	/**
+	 * Queue a signed bundle for the partner.
+	 */
+	synchronized void offer(byte[] message) {
+		// Memory holds every waiting bundle until one doesn't fit, and then
+		// only those before it until the partner has caught up, so the
+		// bundles in memory are always the next ones to send.
+		boolean held = memoryBytes + 4 * memory.size() == writeOffset - readOffset
+				&& memoryBytes + message.length <= memoryCap;
+		try {
+			file.seek(writeOffset);
+			file.writeInt(message.length);
+			file.write(message);
+			writeOffset = file.getFilePointer();
+			writeHeader();
+		} catch (IOException e) {
+			System.err.println("Unable to queue bundle for " + partner);
+			e.printStackTrace();
+			return;
+		}
+		if (held) {
+			memory.addLast(message);
+			memoryBytes += message.length;
+		}
+		notifyAll();
+	}
+
+	/** Bytes of bundles waiting in memory. */
+	synchronized long memoryBytes() {
+		return memoryBytes;
+	}
+
+	/** Bytes of bundles waiting that are only in the file. */
+	synchronized long spilledBytes() {
+		return writeOffset - readOffset - 4 * memory.size() - memoryBytes;
+	}
+
+	private synchronized byte[] next() throws InterruptedException {
+		while (true) {
+			if (!memory.isEmpty()) {
+				return memory.getFirst();
+			}
+			if (writeOffset > readOffset) {
+				try {
+					file.seek(readOffset);
+					int length = file.readInt();
+					if (length <= 0 || readOffset + 4 + length > writeOffset) {
+						throw new IOException("Malformed bundle in the outbox.");
+					}
+					byte[] message = new byte[length];
+					file.readFully(message);
+					return message;
+				} catch (IOException e) {
+					System.err.println("Discarding the outbox for " + partner);
+					e.printStackTrace();
+					try {
+						reset();
+					} catch (IOException e1) {
+						e1.printStackTrace();
+						// Forget the bundles rather than retry forever.
+						readOffset = writeOffset;
+					}
+				}
+				continue;
+			}
+			wait();
+		}
+	}
+
+	private synchronized void sent(byte[] message) {
+		if (!memory.isEmpty() && memory.getFirst() == message) {
+			memory.removeFirst();
+			memoryBytes -= message.length;
+		}
+		readOffset += 4 + message.length;
+		try {
+			if (readOffset >= writeOffset) {
+				reset();
+			} else if (readOffset - HEADER > SHIFT_THRESHOLD
+					&& readOffset - HEADER >= writeOffset - readOffset) {
+				shift();
+			} else {
+				writeHeader();
+			}
+		} catch (IOException e) {
+			// The bundle may be sent again after a restart.
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Empty the file. The header is written first, so if the file is not
+	 * truncated the bundles left in it are ignored.
+	 */
+	private void reset() throws IOException {
+		readOffset = HEADER;
+		writeOffset = HEADER;
+		writeHeader();
+		file.setLength(HEADER);
+	}
+
+	/**
+	 * Move the waiting bundles down to the front of the file. They only
+	 * overwrite bundles that have been sent, and the header is not pointed
+	 * at the new copy until it is on disk, so a crash part way through
+	 * leaves the old copy in use.
+	 */
+	private void shift() throws IOException {
+		long waiting = writeOffset - readOffset;
+		byte[] buffer = new byte[(int) Math.min(COPY_BUFFER, waiting)];
+		for (long moved = 0; moved < waiting;) {
+			int n = (int) Math.min(buffer.length, waiting - moved);
+			file.seek(readOffset + moved);
+			file.readFully(buffer, 0, n);
+			file.seek(HEADER + moved);
+			file.write(buffer, 0, n);
+			moved += n;
+		}
+		file.getFD().sync();
+		readOffset = HEADER;
+		writeOffset = HEADER + waiting;
+		writeHeader();
+		file.setLength(writeOffset);
+	}
+
+	private void writeHeader() throws IOException {
+		file.seek(0);
+		file.writeLong(readOffset);
+		file.writeLong(writeOffset);
+		dirty = true;
+		if (policy == RecordJournal.FsyncPolicy.ALWAYS) {
+			sync();
+		}
+	}
+
+	private synchronized void sync() {
+		if (!dirty) {
+			return;
+		}
+		try {
+			file.getFD().sync();
+			dirty = false;
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	@Override
+	public void run() {
+		long backoff = MIN_BACKOFF;
+		while (true) {
+			byte[] message;
+			try {
+				message = next();
+			} catch (InterruptedException e) {
+				return;
+			}
+			try {
+				if (!send(message)) {
+					System.err.println("Partner " + partner + " rejected a bundle.");
+				}
+				backoff = MIN_BACKOFF;
+			} catch (IOException e) {
+				System.err.println("Sending to " + partner + " failed, retrying in " + backoff
+						+ "ms: " + e.getMessage());
+				try {
+					Thread.sleep(backoff);
+				} catch (InterruptedException e1) {
+					return;
+				}
+				backoff = Math.min(backoff * 2, MAX_BACKOFF);
+				continue;
+			}
+			sent(message);
+		}
+	}
+
+	/**
+	 * POST a bundle to the partner.
+	 *
+	 * @return False if the partner refused the bundle as malformed (400) or
+	 *         badly signed (403), in which case there is no point sending it
+	 *         again.
+	 * @throws IOException
+	 *             If the bundle should be retried.
+	 */
+	private boolean send(byte[] message) throws IOException {
+		HttpURLConnection conn = (HttpURLConnection) partner.openConnection();
+		conn.setConnectTimeout(TIMEOUT);
+		conn.setReadTimeout(TIMEOUT);
+		conn.setDoOutput(true);
+		conn.setRequestMethod("POST");
+		conn.setRequestProperty("Content-Type", "application/octet-stream");
+		conn.setFixedLengthStreamingMode(message.length);
+		OutputStream out = conn.getOutputStream();
+		out.write(message);
+		out.close();
+
+		int code = conn.getResponseCode();
+		// Reading the response to the end lets the connection be kept alive.
+		InputStream in = code < 400 ? conn.getInputStream() : conn.getErrorStream();
+		if (in != null) {
+			byte[] discard = new byte[1024];
+			while (in.read(discard) >= 0) {
+			}
+			in.close();
+		}
+		if (code == HttpURLConnection.HTTP_BAD_REQUEST || code == HttpURLConnection.HTTP_FORBIDDEN) {
+			// Malformed, or not signed with our key: it will never be taken.
+			return false;
+		}
+		if (code / 100 != 2) {
+			// Including a 404 from a partner not yet coordinating, or a
+			// proxy in the way.
+			throw new IOException("Partner returned " + code);
+		}
+		return true;
+	}
+}
@@ -11,12 +11,15 @@ public class PortDirectoryRecord extends DirectoryRecord {
 	private static final long serialVersionUID = 2547845874756953017L;
 
 	@Override
-    public void fullXML(XMLHelper xmlOut) throws SAXException {
+    void fullXML(XMLHelper xmlOut, boolean saved) throws SAXException {
         xmlOut.startElement(XMLHelper.SERVICE);
         xmlOut.writeTag(XMLHelper.SERVICE_ID, Long.toString(this.serviceId));
         xmlOut.writeTag(XMLHelper.PUBLIC_KEY, this.publicKey);
         xmlOut.writeTag(XMLHelper.NICKNAME, this.nickname);
         xmlOut.writeTag(XMLHelper.SIGNATURE, Base64.encode(signature));
+        if (saved) {
+            writeTimes(xmlOut);
+        }
         xmlOut.endElement(XMLHelper.SERVICE);
     }
 
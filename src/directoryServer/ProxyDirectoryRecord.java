@@ -49,7 +49,7 @@ public class ProxyDirectoryRecord extends DirectoryRecord {
     }
 
     @Override
-    public void fullXML(XMLHelper xmlOut) throws SAXException {
+    void fullXML(XMLHelper xmlOut, boolean saved) throws SAXException {
         xmlOut.startElement(XMLHelper.EXIT_NODE);
         xmlOut.writeTag(XMLHelper.SERVICE_ID, Long.toString(this.serviceId));
         xmlOut.writeTag(XMLHelper.PUBLIC_KEY, this.publicKey);
@@ -58,6 +58,9 @@ public class ProxyDirectoryRecord extends DirectoryRecord {
         xmlOut.writeTag(XMLHelper.EXIT_POLICY, this.exitPolicy);
         xmlOut.writeTag(XMLHelper.VERSION, this.version);
         xmlOut.writeTag(XMLHelper.SIGNATURE, Base64.encode(signature));
+        if (saved) {
+            writeTimes(xmlOut);
+        }
         xmlOut.endElement(XMLHelper.EXIT_NODE);
     }
 }
@@ -0,0 +1,119 @@
+package directoryServer;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Token buckets by client address, limiting how often each address may make
+ * a request. An address may make up to burst requests at once, and after
+ * that one each time another token has accrued at the given rate.
+ *
+ * Buckets are spread over STRIPES tables, each with its own lock, so threads
+ * seldom wait on one another. Each table keeps its buckets in order of last
+ * use. A bucket left alone long enough to fill up again is no different from
+ * a new one, so such buckets are dropped from the front of the table as they
+ * are reached, and a table that still grows past its share of maxAddresses
+ * drops the least recently used.
+ */
+class RateLimiter {
+    private static final int STRIPES = 64;
+
+    private static class Bucket {
+        double tokens;
+        long updated;
+    }
+
+    private static class Stripe extends LinkedHashMap<String, Bucket> {
+        private static final long serialVersionUID = 1L;
+        private final int max;
+
+        Stripe(int max) {
+            super(16, 0.75f, true);
+            this.max = max;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Bucket> eldest) {
+            return size() > max;
+        }
+    }
+
+    private final double tokensPerNano;
+    private final double burst;
+    // Time for an empty bucket to fill up.
+    private final long refillNanos;
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    /**
+     * @param perSecond
+     *            Requests allowed each second once the burst is used up.
+     * @param burst
+     *            Requests allowed at once.
+     * @param maxAddresses
+     *            Most addresses tracked.
+     */
+    RateLimiter(double perSecond, int burst, int maxAddresses) {
+        this.tokensPerNano = perSecond / 1000000000.0;
+        this.burst = burst;
+        this.refillNanos = (long) (burst / tokensPerNano);
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(Math.max(1, maxAddresses / STRIPES));
+        }
+    }
+
+    /**
+     * Take a token for a request from an address.
+     *
+     * @return 0 if the request may go ahead, or else the milliseconds until
+     *         it would be allowed.
+     */
+    long acquire(String address) {
+        int hash = address.hashCode();
+        Stripe stripe = stripes[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+        long now = System.nanoTime();
+        synchronized (stripe) {
+            evictIdle(stripe, now);
+            Bucket bucket = stripe.get(address);
+            if (bucket == null) {
+                bucket = new Bucket();
+                bucket.tokens = burst;
+                stripe.put(address, bucket);
+            } else {
+                bucket.tokens = Math.min(burst, bucket.tokens + (now - bucket.updated)
+                        * tokensPerNano);
+            }
+            bucket.updated = now;
+            if (bucket.tokens >= 1) {
+                bucket.tokens--;
+                return 0;
+            }
+            return (long) Math.ceil((1 - bucket.tokens) / tokensPerNano / 1000000);
+        }
+    }
+
+    /**
+     * Drop the buckets at the front of a table that have filled up since
+     * they were last used.
+     */
+    private void evictIdle(Stripe stripe, long now) {
+        Iterator<Bucket> buckets = stripe.values().iterator();
+        while (buckets.hasNext()) {
+            if (now - buckets.next().updated < refillNanos) {
+                break;
+            }
+            buckets.remove();
+        }
+    }
+
+    /** The number of addresses being tracked. */
+    int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+        return size;
+    }
+}
@@ -0,0 +1,133 @@
+package directoryServer;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * A compact binary encoding of directory records, used for registrations
+ * relayed between partners and written to the journal.
+ *
+ * The format starts with a version byte and a record kind, followed by the
+ * fields shared by all records and then those of the kind. Strings and byte
+ * arrays are prefixed with their length, or -1 if they are null.
+ */
+class RecordCodec {
+    private static final byte VERSION = 1;
+    private static final byte KIND_PROXY = 1;
+    private static final byte KIND_PORT = 2;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    // Strings and arrays claiming to be longer than this are rejected.
+    private static final int MAX_FIELD_LENGTH = 16 * 1024;
+
+    static byte[] encode(DirectoryRecord record) {
+        byte kind;
+        if (record instanceof ProxyDirectoryRecord) {
+            kind = KIND_PROXY;
+        } else if (record instanceof PortDirectoryRecord) {
+            kind = KIND_PORT;
+        } else {
+            throw new IllegalArgumentException("Unknown record type " + record.type());
+        }
+        byte[] publicKey = bytes(record.publicKey);
+        byte[] nickname = bytes(record.nickname);
+        int length = 2 + 8 * 3 + field(publicKey) + field(nickname) + field(record.signature);
+
+        byte[] version = null;
+        byte[] exitPolicy = null;
+        if (kind == KIND_PROXY) {
+            ProxyDirectoryRecord proxy = (ProxyDirectoryRecord) record;
+            version = bytes(proxy.version);
+            exitPolicy = bytes(proxy.exitPolicy);
+            length += 4 + field(version) + field(exitPolicy);
+        }
+
+        ByteBuffer out = ByteBuffer.allocate(length);
+        out.put(VERSION);
+        out.put(kind);
+        out.putLong(record.serviceId);
+        out.putLong(record.createdTime);
+        out.putLong(record.lastCheckinTime);
+        put(out, publicKey);
+        put(out, nickname);
+        put(out, record.signature);
+        if (kind == KIND_PROXY) {
+            out.putInt(((ProxyDirectoryRecord) record).bandwidth);
+            put(out, version);
+            put(out, exitPolicy);
+        }
+        return out.array();
+    }
+
+    /**
+     * @return The decoded record, or null if the data is not a record in a
+     *         known version of the format.
+     */
+    static DirectoryRecord decode(ByteBuffer in) {
+        try {
+            if (in.get() != VERSION) {
+                return null;
+            }
+            byte kind = in.get();
+            DirectoryRecord record;
+            if (kind == KIND_PROXY) {
+                record = new ProxyDirectoryRecord();
+            } else if (kind == KIND_PORT) {
+                record = new PortDirectoryRecord();
+            } else {
+                return null;
+            }
+            record.serviceId = in.getLong();
+            record.createdTime = in.getLong();
+            record.lastCheckinTime = in.getLong();
+            record.publicKey = string(get(in));
+            record.nickname = string(get(in));
+            record.signature = get(in);
+            if (kind == KIND_PROXY) {
+                ProxyDirectoryRecord proxy = (ProxyDirectoryRecord) record;
+                proxy.bandwidth = in.getInt();
+                proxy.version = string(get(in));
+                proxy.exitPolicy = string(get(in));
+            }
+            return record;
+        } catch (BufferUnderflowException e) {
+            return null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static byte[] bytes(String s) {
+        return s == null ? null : s.getBytes(UTF8);
+    }
+
+    private static String string(byte[] b) {
+        return b == null ? null : new String(b, UTF8);
+    }
+
+    private static int field(byte[] b) {
+        return 4 + (b == null ? 0 : b.length);
+    }
+
+    private static void put(ByteBuffer out, byte[] b) {
+        if (b == null) {
+            out.putInt(-1);
+        } else {
+            out.putInt(b.length);
+            out.put(b);
+        }
+    }
+
+    private static byte[] get(ByteBuffer in) {
+        int length = in.getInt();
+        if (length == -1) {
+            return null;
+        }
+        if (length < 0 || length > MAX_FIELD_LENGTH) {
+            throw new IllegalArgumentException("Invalid field length " + length);
+        }
+        byte[] b = new byte[length];
+        in.get(b);
+        return b;
+    }
+}
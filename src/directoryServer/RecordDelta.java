@@ -1,52 +1,75 @@
 package directoryServer;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
-import java.util.Arrays;
 
 public class RecordDelta {
 	public RecordDelta(DirectoryRecord record, boolean update) {
+		this(record, update ? TYPE.UPDATE : TYPE.NEWREG);
+	}
+
+	public RecordDelta(DirectoryRecord record, TYPE type) {
 		this.record = record;
-		if (update) {
+		this.serviceId = record.serviceId;
+		if (type == TYPE.UPDATE) {
 			this.type = TYPE.UPDATE;
-			this.serviceId = record.serviceId;
 			this.lastCheckinTime = record.lastCheckinTime;
+			this.lastHeartbeat = record.lastHeartbeat();
+		} else if (type == TYPE.REMOVE) {
+			this.type = TYPE.REMOVE;
+			this.createdTime = record.createdTime;
 		} else {
 			this.type = TYPE.NEWREG;
 			try {
-				ByteArrayOutputStream serializer = new ByteArrayOutputStream();
-				new ObjectOutputStream(serializer).writeObject(record);
-				this.data = serializer.toByteArray();
-			} catch (Exception e) {
+				this.data = RecordCodec.encode(record);
+			} catch (IllegalArgumentException e) {
 				this.valid = false;
 				return;
 			}
 		}
 	}
 	
+	/**
+	 * The removal of the record of a serviceId created at a time.
+	 */
+	public RecordDelta(long serviceId, long createdTime) {
+		this.type = TYPE.REMOVE;
+		this.serviceId = serviceId;
+		this.createdTime = createdTime;
+	}
+
+	/**
+	 * @throws BufferUnderflowException
+	 *             If the delta has been cut short.
+	 */
 	public RecordDelta(byte[] serialized) {
 		if (serialized[0] == 0x01) { // checkin
 			this.type = TYPE.UPDATE;
-			// long serviceid, long lastUpdate
-			byte[] longBuffer;
-			
-			longBuffer = Arrays.copyOfRange(serialized, 1, 9);
-			this.serviceId = ByteBuffer.wrap(longBuffer).getLong();
-			longBuffer = Arrays.copyOfRange(serialized, 9, 17);
-			this.lastCheckinTime = ByteBuffer.wrap(longBuffer).getLong();
+			// long serviceid, long lastUpdate, and long lastHeartbeat unless
+			// written by an older version
+			ByteBuffer in = ByteBuffer.wrap(serialized, 1, serialized.length - 1);
+			this.serviceId = in.getLong();
+			this.lastCheckinTime = in.getLong();
+			if (in.hasRemaining()) {
+				this.lastHeartbeat = in.getLong();
+			}
 		} else if (serialized[0] == 0x02) { // new registration.
 			this.type = TYPE.NEWREG;
-			try {
-				ByteArrayInputStream deserializer = new ByteArrayInputStream(serialized, 1, serialized.length - 1);
-				this.record = (DirectoryRecord)new ObjectInputStream(deserializer).readObject();
-			} catch (Exception e) {
+			this.record = RecordCodec.decode(ByteBuffer.wrap(serialized, 1, serialized.length - 1));
+			if (this.record == null) {
 				this.valid = false;
 				return;
 			}
+			this.serviceId = this.record.serviceId;
 			this.lastCheckinTime = System.currentTimeMillis();
+		} else if (serialized[0] == 0x03) { // removal
+			this.type = TYPE.REMOVE;
+			// long serviceid, and long createdTime unless written by an older version
+			ByteBuffer in = ByteBuffer.wrap(serialized, 1, serialized.length - 1);
+			this.serviceId = in.getLong();
+			if (in.hasRemaining()) {
+				this.createdTime = in.getLong();
+			}
 		} else {
 			this.valid = false;
 		}
@@ -54,21 +77,27 @@ public class RecordDelta {
 	
 	enum TYPE {
 		UPDATE,
-		NEWREG
+		NEWREG,
+		REMOVE
 	};
 	public TYPE type;
 	public long serviceId;
 	public long lastCheckinTime;
+	// For check-ins, the newest signed heartbeat accepted, or 0 if none.
+	public long lastHeartbeat;
+	// For removals, the createdTime of the record removed, or 0 if not known.
+	public long createdTime;
     public byte[] data;
     public DirectoryRecord record;
     boolean valid = true;
 
 	public byte[] toByteArray() {
 		if (this.type == TYPE.UPDATE) {
-			byte[] output = new byte[17];
+			byte[] output = new byte[25];
 			output[0] = 0x01;
 			ByteBuffer.wrap(output).putLong(1, this.serviceId);
 			ByteBuffer.wrap(output).putLong(9, this.lastCheckinTime);
+			ByteBuffer.wrap(output).putLong(17, this.lastHeartbeat);
 			return output;
 		} else if (this.type == TYPE.NEWREG) {
 			ByteBuffer output = ByteBuffer.allocate(this.data.length + 1);
@@ -76,6 +105,12 @@ public class RecordDelta {
 			output.put(data);
 			output.flip();
 			return output.array();
+		} else if (this.type == TYPE.REMOVE) {
+			byte[] output = new byte[17];
+			output[0] = 0x03;
+			ByteBuffer.wrap(output).putLong(1, this.serviceId);
+			ByteBuffer.wrap(output).putLong(9, this.createdTime);
+			return output;
 		} else {
 			return new byte[] {};
 		}
@@ -0,0 +1,124 @@
+package directoryServer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Secondary indexes over the published records, so that filtered listings
+ * only look at records that could match: the records of each type, exit
+ * nodes sorted by bandwidth, and exit nodes by version.
+ */
+class RecordIndex {
+    // Exit nodes with the least bandwidth first, and then in listing order.
+    private static final Comparator<DirectoryRecord> BY_BANDWIDTH = new Comparator<DirectoryRecord>() {
+        @Override
+        public int compare(DirectoryRecord a, DirectoryRecord b) {
+            int bandwidthA = ((ProxyDirectoryRecord) a).bandwidth;
+            int bandwidthB = ((ProxyDirectoryRecord) b).bandwidth;
+            if (bandwidthA != bandwidthB) {
+                return bandwidthA < bandwidthB ? -1 : 1;
+            }
+            return a.compareTo(b);
+        }
+    };
+
+    private final ConcurrentSkipListSet<DirectoryRecord> exitNodes = new ConcurrentSkipListSet<DirectoryRecord>();
+    private final ConcurrentSkipListSet<DirectoryRecord> services = new ConcurrentSkipListSet<DirectoryRecord>();
+    private final ConcurrentSkipListSet<DirectoryRecord> byBandwidth = new ConcurrentSkipListSet<DirectoryRecord>(
+            BY_BANDWIDTH);
+    private final ConcurrentHashMap<String, Set<DirectoryRecord>> byVersion = new ConcurrentHashMap<String, Set<DirectoryRecord>>();
+
+    void add(DirectoryRecord record) {
+        if (record instanceof ProxyDirectoryRecord) {
+            ProxyDirectoryRecord proxy = (ProxyDirectoryRecord) record;
+            exitNodes.add(record);
+            byBandwidth.add(record);
+            if (proxy.version != null) {
+                Set<DirectoryRecord> version = byVersion.get(proxy.version);
+                if (version == null) {
+                    version = new ConcurrentSkipListSet<DirectoryRecord>();
+                    Set<DirectoryRecord> raced = byVersion.putIfAbsent(proxy.version, version);
+                    if (raced != null) {
+                        version = raced;
+                    }
+                }
+                version.add(record);
+            }
+        } else {
+            services.add(record);
+        }
+    }
+
+    void remove(DirectoryRecord record) {
+        if (record instanceof ProxyDirectoryRecord) {
+            ProxyDirectoryRecord proxy = (ProxyDirectoryRecord) record;
+            exitNodes.remove(record);
+            byBandwidth.remove(record);
+            if (proxy.version != null) {
+                Set<DirectoryRecord> version = byVersion.get(proxy.version);
+                if (version != null) {
+                    version.remove(record);
+                }
+            }
+        } else {
+            services.remove(record);
+        }
+    }
+
+    /**
+     * The exit nodes, newest first.
+     */
+    List<DirectoryRecord> exitNodes() {
+        return new ArrayList<DirectoryRecord>(exitNodes);
+    }
+
+    /**
+     * The records matching a query, newest first.
+     */
+    List<DirectoryRecord> select(ListingQuery query) {
+        Iterable<DirectoryRecord> candidates;
+        boolean sorted = true;
+        if (query.minBandwidth > 0) {
+            ProxyDirectoryRecord least = new ProxyDirectoryRecord();
+            least.bandwidth = query.minBandwidth;
+            // Sorts before every record with the same bandwidth.
+            least.createdTime = Long.MAX_VALUE;
+            least.serviceId = Long.MIN_VALUE;
+            NavigableSet<DirectoryRecord> tail = byBandwidth.tailSet(least, true);
+            candidates = tail;
+            sorted = false;
+        } else if (query.version != null) {
+            Set<DirectoryRecord> version = byVersion.get(query.version);
+            if (version == null) {
+                return Collections.emptyList();
+            }
+            candidates = version;
+        } else if (query.exitNodesOnly()) {
+            candidates = exitNodes;
+        } else if (query.type != null) {
+            candidates = services;
+        } else {
+            List<DirectoryRecord> all = new ArrayList<DirectoryRecord>(exitNodes);
+            all.addAll(services);
+            candidates = all;
+            sorted = false;
+        }
+
+        List<DirectoryRecord> matches = new ArrayList<DirectoryRecord>();
+        for (DirectoryRecord record : candidates) {
+            if (query.matches(record)) {
+                matches.add(record);
+            }
+        }
+        if (!sorted) {
+            Collections.sort(matches);
+        }
+        return matches;
+    }
+}
@@ -0,0 +1,210 @@
+package directoryServer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * An append-only log of the changes made to the directory since it was last
+ * written out in full. Each entry is a length prefixed RecordDelta. On
+ * startup the database file is read and the journal replayed on top of it.
+ *
+ * While the database file is being rewritten, new entries go to a fresh
+ * journal and the old one is set aside, so appends are not held up by the
+ * rewrite. Until the new database file is in place both are replayed.
+ *
+ * How often the journal is forced to disk is controlled by the
+ * "directory.journal.fsync" system property: "always" syncs after every
+ * entry, "interval" (the default) syncs once a second, and "never" leaves it
+ * to the operating system.
+ */
+class RecordJournal {
+    enum FsyncPolicy {
+        ALWAYS,
+        INTERVAL,
+        NEVER
+    };
+
+    private static final String FSYNC_PROPERTY = "directory.journal.fsync";
+    static final int FSYNC_INTERVAL = 1000;
+    // Entries longer than this are assumed to be corruption.
+    private static final int MAX_ENTRY_LENGTH = 64 * 1024;
+
+    private final File file;
+    // The journal set aside while the database file is rewritten.
+    private final File rotated;
+    private final FsyncPolicy policy;
+    private FileOutputStream fos;
+    private DataOutputStream out;
+    private int entries;
+    private boolean dirty;
+
+    RecordJournal(File file) {
+        this.file = file;
+        this.rotated = new File(file.getPath() + ".old");
+        this.policy = fsyncPolicy();
+    }
+
+    /**
+     * The fsync policy set by the "directory.journal.fsync" property, which
+     * also applies to the partners' outbox files.
+     */
+    static FsyncPolicy fsyncPolicy() {
+        return FsyncPolicy.valueOf(System.getProperty(FSYNC_PROPERTY,
+                FsyncPolicy.INTERVAL.name()).toUpperCase());
+    }
+
+    /**
+     * Read back the entries in the journal, starting with any set aside by a
+     * rewrite of the database file that did not finish. Reading a file stops
+     * at the first incomplete entry, which is what a crash in the middle of
+     * an append leaves behind.
+     */
+    List<RecordDelta> replay() throws IOException {
+        List<RecordDelta> deltas = new LinkedList<RecordDelta>();
+        replay(rotated, deltas);
+        replay(file, deltas);
+        return deltas;
+    }
+
+    private static void replay(File file, List<RecordDelta> deltas) throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            while (true) {
+                int length = in.readInt();
+                if (length <= 0 || length > MAX_ENTRY_LENGTH) {
+                    break;
+                }
+                byte[] entry = new byte[length];
+                in.readFully(entry);
+                RecordDelta d;
+                try {
+                    d = new RecordDelta(entry);
+                } catch (IndexOutOfBoundsException e) {
+                    System.err.println("Journal entry cut short, ignoring the rest of " + file);
+                    break;
+                } catch (BufferUnderflowException e) {
+                    System.err.println("Journal entry cut short, ignoring the rest of " + file);
+                    break;
+                }
+                // Complete entries that can't be decoded, such as those
+                // written in an older format, are skipped.
+                if (d.valid) {
+                    deltas.add(d);
+                }
+            }
+        } catch (EOFException e) {
+            // End of the journal.
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Start appending to the journal. Entries already in the file are kept
+     * until the next call to truncate.
+     */
+    synchronized void open() throws FileNotFoundException {
+        openFile();
+
+        if (policy == FsyncPolicy.INTERVAL) {
+            Timer syncer = new Timer("Journal sync", true);
+            syncer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    try {
+                        sync();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }, FSYNC_INTERVAL, FSYNC_INTERVAL);
+        }
+    }
+
+    synchronized void append(RecordDelta d) throws IOException {
+        if (!d.valid) {
+            return;
+        }
+        byte[] entry = d.toByteArray();
+        out.writeInt(entry.length);
+        out.write(entry);
+        out.flush();
+        entries++;
+        dirty = true;
+        if (policy == FsyncPolicy.ALWAYS) {
+            sync();
+        }
+    }
+
+    private synchronized void sync() throws IOException {
+        if (dirty) {
+            fos.getFD().sync();
+            dirty = false;
+        }
+    }
+
+    /** The number of entries appended since the journal was last truncated. */
+    synchronized int size() {
+        return entries;
+    }
+
+    /**
+     * Set the entries appended so far aside and start a new journal. If an
+     * earlier journal is still set aside, the entries are added to it.
+     * Once the state they describe has been written out, discardRotated
+     * drops them.
+     */
+    synchronized void rotate() throws IOException {
+        out.flush();
+        fos.getFD().sync();
+        fos.close();
+        if (rotated.exists()) {
+            FileInputStream in = new FileInputStream(file);
+            FileOutputStream rest = new FileOutputStream(rotated, true);
+            try {
+                IOUtils.copy(in, rest);
+                rest.getFD().sync();
+            } finally {
+                in.close();
+                rest.close();
+            }
+            file.delete();
+        } else if (!file.renameTo(rotated)) {
+            openFile();
+            throw new IOException("Unable to set aside " + file);
+        }
+        openFile();
+        entries = 0;
+        dirty = false;
+    }
+
+    /**
+     * Delete the entries set aside by rotate.
+     */
+    synchronized void discardRotated() {
+        rotated.delete();
+    }
+
+    private void openFile() throws FileNotFoundException {
+        fos = new FileOutputStream(file, true);
+        out = new DataOutputStream(new BufferedOutputStream(fos));
+    }
+}
@@ -0,0 +1,48 @@
+package directoryServer;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * A reusable buffer for building dynamic responses. Each handler thread keeps
+ * one, so a response is built without allocating a new buffer, growing it,
+ * and then copying it out with toByteArray.
+ */
+class ResponseBuffer extends ByteArrayOutputStream {
+    private static final int INITIAL_SIZE = 8 * 1024;
+    // Buffers that grew past this for an unusually large response are
+    // dropped rather than kept for the life of the thread.
+    private static final int MAX_RETAINED = 256 * 1024;
+
+    private static final ThreadLocal<ResponseBuffer> BUFFERS = new ThreadLocal<ResponseBuffer>() {
+        @Override
+        protected ResponseBuffer initialValue() {
+            return new ResponseBuffer();
+        }
+    };
+
+    private ResponseBuffer() {
+        super(INITIAL_SIZE);
+    }
+
+    /**
+     * The calling thread's buffer, emptied. It may only be used until the
+     * thread next calls this method.
+     */
+    static ResponseBuffer get() {
+        ResponseBuffer buffer = BUFFERS.get();
+        if (buffer.buf.length > MAX_RETAINED) {
+            buffer = new ResponseBuffer();
+            BUFFERS.set(buffer);
+        }
+        buffer.reset();
+        return buffer;
+    }
+
+    /**
+     * The buffer's contents, without copying. Only the first size() bytes are
+     * valid.
+     */
+    byte[] buffer() {
+        return buf;
+    }
+}
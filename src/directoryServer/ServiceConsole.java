@@ -14,9 +14,11 @@ class ServiceConsole implements Runnable {
     private static final String PROMPT = ">>> ";
     private final Map<String, ServiceCommand> commands = new TreeMap<String, ServiceCommand>();
     private final DirectoryDB db;
+    private final SignerPool signers;
 
-    public ServiceConsole(DirectoryDB dataBase) {
+    public ServiceConsole(DirectoryDB dataBase, SignerPool signerPool) {
         this.db = dataBase;
+        this.signers = signerPool;
 
         // HELP Command
         commands.put("help", new ServiceCommand() {
@@ -78,6 +80,39 @@ class ServiceConsole implements Runnable {
             }
         });
 
+        // SIGNERS Command
+        commands.put("signers", new ServiceCommand() {
+            @Override
+            void perform(String[] args) {
+                long signatures = signers.getSignatures();
+                long contended = signers.getContended();
+                long waitMillis = signers.getWaitNanos() / 1000000;
+                System.out.println("Signatures: " + signatures + " Waited: " + contended
+                        + " Total wait: " + waitMillis + "ms");
+                if (contended > 0) {
+                    System.out.println("Average wait: " + (waitMillis / (double) contended) + "ms");
+                }
+            }
+
+            @Override
+            String help() {
+                return "Usage: signers\n\tDisplays how long requests have waited to be signed.";
+            }
+        });
+
+        // STATS Command
+        commands.put("stats", new ServiceCommand() {
+            @Override
+            void perform(String[] args) {
+                System.out.print(Metrics.report());
+            }
+
+            @Override
+            String help() {
+                return "Usage: stats\n\tDisplays request counts, latencies and queue depths.";
+            }
+        });
+
         // IMPORT Command
         commands.put("import", new ServiceCommand() {
 
@@ -94,7 +129,6 @@ class ServiceConsole implements Runnable {
                         for (DirectoryRecord node : newNodes) {
                             db.add(node, new XMLHelper(System.out));
                         }
-                        db.saveEdits();
                     } catch (FileNotFoundException e) {
                         System.out.println("Invalid file specified.");
                     } catch (Exception e) {
@@ -4,21 +4,20 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
-import java.net.HttpURLConnection;
 import java.net.URL;
 import java.security.Signature;
+import java.security.SignatureException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import org.apache.xerces.impl.dv.util.Base64;
+import org.apache.commons.io.IOUtils;
 import org.mortbay.jetty.HttpConnection;
 import org.mortbay.jetty.Request;
 
@@ -33,19 +32,41 @@ import org.mortbay.jetty.Request;
  */
 public class ServiceCoordinator {
 	private final DirectoryDB db;
-	private final Signature authority;
+	private final SignerPool authority;
 	private final Signature verifier;
 	private final File partnerFile;
 	private final List<URL> partners;
-	private ExecutorService executor;
+	private final List<PartnerOutbox> outboxes;
+	private final AntiEntropy antiEntropy;
+	// Changes waiting for the next bundle.
+	private final List<RecordDelta> pending = new ArrayList<RecordDelta>();
 	private static final String PATH = "coord";
+	// Changes are gathered for up to BUNDLE_WINDOW milliseconds, or until
+	// BUNDLE_SIZE have been queued, and then sent as one bundle.
+	private static final int BUNDLE_WINDOW = Integer.getInteger("directory.coord.window", 500);
+	private static final int BUNDLE_SIZE = Integer.getInteger("directory.coord.bundle", 256);
+	private static final int MAX_BUNDLE_BYTES = 16 * 1024 * 1024;
+	// Bytes of each partner's waiting bundles also held in memory, so they are
+	// sent without being read back from its outbox file.
+	private static final long OUTBOX_MEMORY = Long.getLong("directory.coord.memory", 4 * 1024 * 1024);
+	// How often each partner's Merkle tree is compared with ours.
+	private static final int ANTI_ENTROPY_INTERVAL = Integer.getInteger("directory.coord.antientropy", 60 * 1000);
+	// Time taken to send bundles and to repair differences, and how much
+	// was sent and repaired.
+	private static final Histogram FLUSH_LATENCY = Metrics.histogram("coord.flush");
+	private static final Histogram REPAIR_LATENCY = Metrics.histogram("coord.antientropy");
+	private static final AtomicLong BUNDLES = Metrics.counter("coord.bundles");
+	private static final AtomicLong DELTAS = Metrics.counter("coord.deltas");
+	private static final AtomicLong REPAIRED = Metrics.counter("coord.repaired");
 	
-	public ServiceCoordinator(DirectoryDB db, File partners, Signature authority, Signature verifier) {
+	public ServiceCoordinator(DirectoryDB db, File partners, SignerPool authority, Signature verifier) {
 		this.db = db;
 		this.authority = authority;
 		this.verifier = verifier;
 		this.partnerFile = partners;
 		this.partners = new ArrayList<URL>();
+		this.outboxes = new ArrayList<PartnerOutbox>();
+		this.antiEntropy = new AntiEntropy(db, authority, verifier);
 		
 		this.setup();
 	}
@@ -57,7 +78,14 @@ public class ServiceCoordinator {
 			String line;
 			while((line = br.readLine()) != null) {
 				if (line.length() > 0) {
-					partners.add(new URL(line + "/" + PATH));
+					if (!line.contains("://")) {
+						line = "http://" + line;
+					}
+					URL partner = new URL(line + "/" + PATH);
+					partners.add(partner);
+					File outboxFile = new File("coord-" + partner.getHost() + "_" + partner.getPort()
+							+ ".outbox");
+					outboxes.add(new PartnerOutbox(partner, outboxFile, OUTBOX_MEMORY));
 				}
 			}
 		} catch(IOException e) {
@@ -68,7 +96,70 @@ public class ServiceCoordinator {
 		
 		OSDirectoryServer.instance.jettyServer.addHandler(new CoordinatorHandler(this));
 		
-		this.executor = this.getExecutor();
+		// Each partner gets its own sender, so one that is down can't hold up
+		// the others.
+		for (PartnerOutbox outbox : outboxes) {
+			outbox.start();
+		}
+
+		Timer bundler = new Timer("Coordination bundler", true);
+		bundler.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				flush();
+			}
+		}, BUNDLE_WINDOW, BUNDLE_WINDOW);
+
+		Timer repairer = new Timer("Anti-entropy", true);
+		repairer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				for (URL partner : partners) {
+					long start = System.nanoTime();
+					try {
+						int merged = antiEntropy.reconcile(partner);
+						REPAIRED.addAndGet(merged);
+						if (merged > 0) {
+							System.out.println("Repaired " + merged + " records from " + partner);
+						}
+					} catch (IOException e) {
+						System.err.println("Anti-entropy with " + partner + " failed: "
+								+ e.getMessage());
+					} finally {
+						REPAIR_LATENCY.recordSince(start);
+					}
+				}
+			}
+		}, ANTI_ENTROPY_INTERVAL, ANTI_ENTROPY_INTERVAL);
+
+		Metrics.gauge("coord.pending", new Metrics.Gauge() {
+			@Override
+			public long value() {
+				synchronized (pending) {
+					return pending.size();
+				}
+			}
+		});
+		Metrics.gauge("coord.outbox_memory", new Metrics.Gauge() {
+			@Override
+			public long value() {
+				long bytes = 0;
+				for (PartnerOutbox outbox : outboxes) {
+					bytes += outbox.memoryBytes();
+				}
+				return bytes;
+			}
+		});
+		Metrics.gauge("coord.outbox_spilled", new Metrics.Gauge() {
+			@Override
+			public long value() {
+				long bytes = 0;
+				for (PartnerOutbox outbox : outboxes) {
+					bytes += outbox.spilledBytes();
+				}
+				return bytes;
+			}
+		});
 	}
 	
 	public class CoordinatorHandler extends org.mortbay.jetty.handler.AbstractHandler {
@@ -84,71 +175,155 @@ public class ServiceCoordinator {
             Request request = (req instanceof Request) ? (Request) req : HttpConnection
                     .getCurrentConnection().getRequest();
 
-            if(path == PATH) {
+            if (path.equals("/" + PATH + "/" + AntiEntropy.DIGEST_PATH)
+            		|| path.equals("/" + PATH + "/" + AntiEntropy.BUCKET_PATH)) {
+            	request.setHandled(true);
             	try {
-            		// Validate the request.
-            		String payload = request.getParameter("p");
-            		byte[] pb = Base64.decode(payload);
-            		String digest = request.getParameter("d");
-            		byte[] db = Base64.decode(digest);
-            		synchronized(this.state.verifier) {
-            			this.state.verifier.update(pb);
-            			if (!this.state.verifier.verify(db)) {
-            				return;
-            			}
+            		boolean digest = path.endsWith(AntiEntropy.DIGEST_PATH);
+            		String param = digest ? AntiEntropy.PARAM_NODES : AntiEntropy.PARAM_BUCKETS;
+            		String indices = request.getParameter(param);
+            		if (!this.state.antiEntropy.authentic(digest ? AntiEntropy.DIGEST_PATH
+            				: AntiEntropy.BUCKET_PATH, param, indices,
+            				request.getParameter(AntiEntropy.PARAM_TIME),
+            				request.getParameter(AntiEntropy.PARAM_SIGNATURE))) {
+            			resp.sendError(HttpServletResponse.SC_FORBIDDEN);
+            			return;
+            		}
+            		byte[] answer;
+            		if (digest) {
+            			answer = this.state.antiEntropy.answerNodes(indices);
+            		} else {
+            			answer = this.state.antiEntropy.answerBuckets(indices);
+            		}
+            		if (answer == null) {
+            			resp.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            			return;
+            		}
+            		resp.setContentType("application/octet-stream");
+            		resp.setContentLength(answer.length);
+            		resp.getOutputStream().write(answer);
+            		resp.getOutputStream().flush();
+            	} catch (SignatureException e) {
+            		e.printStackTrace();
+            		serverError(resp);
+            	}
+            } else if (("/" + PATH).equals(path)) {
+            	request.setHandled(true);
+            	// Malformed and oversized bundles are refused with 400, and
+            	// bundles not signed by a partner with 403, so the sender
+            	// drops them. Anything else is a fault here, and the sender
+            	// retries it.
+            	try {
+            		if (request.getContentLength() > MAX_BUNDLE_BYTES) {
+            			resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bundle too large.");
+            			return;
+            		}
+            		BoundedInputStream in = new BoundedInputStream(request.getInputStream(), MAX_BUNDLE_BYTES);
+            		byte[] body = IOUtils.toByteArray(in);
+            		if (in.exceeded()) {
+            			resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bundle too large.");
+            			return;
             		}
 
-            		// Extract the command.
-            		RecordDelta d = new RecordDelta(pb);
-            		if (!d.valid) {
+            		// Validate the bundle once for all of its deltas.
+            		byte[][] message = DeltaBundle.unwrap(body);
+            		if (message == null) {
+            			resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Malformed bundle.");
+            			return;
+            		}
+            		boolean signed;
+            		synchronized(this.state.verifier) {
+            			this.state.verifier.update(message[1]);
+            			signed = this.state.verifier.verify(message[0]);
+            		}
+            		if (!signed) {
+            			resp.sendError(HttpServletResponse.SC_FORBIDDEN, "Invalid signature.");
             			return;
             		}
-            		this.state.db.merge(d);
 
-            		request.setHandled(true);
+            		// Extract the commands.
+            		List<RecordDelta> deltas = DeltaBundle.decode(message[1]);
+            		if (deltas == null) {
+            			resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Malformed bundle.");
+            			return;
+            		}
+            		for (RecordDelta d : deltas) {
+            			this.state.db.merge(d);
+            		}
+            		this.state.db.saveEditsLater();
+            	} catch (SignatureException e) {
+            		// A signature that is not even well formed.
+            		resp.sendError(HttpServletResponse.SC_FORBIDDEN, "Invalid signature.");
+            	} catch (IOException e) {
+            		// The partner went away mid-bundle, and will send it again.
+            		e.printStackTrace();
             	} catch (Exception e) {
-            		return;
+            		e.printStackTrace();
+            		serverError(resp);
             	}
 			}
 		}
+
+		private void serverError(HttpServletResponse resp) throws IOException {
+			if (!resp.isCommitted()) {
+				resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+			}
+		}
 	}
 
-	public ExecutorService getExecutor() {
-		LinkedBlockingQueue<Runnable> queue = new LinkedBlockingQueue<Runnable>();
-		return new ThreadPoolExecutor(1, 2, 1000, TimeUnit.MILLISECONDS, queue);
+	/**
+	 * Queue a change to be relayed to partners in the next bundle.
+	 */
+	public void add(DirectoryRecord node, boolean update) {
+		queue(new RecordDelta(node, update));
 	}
 
-	public void add(final DirectoryRecord node, final boolean update) {
-		Runnable task = new Runnable() {
-			@Override
-			public void run() {
-				byte[] payload = new RecordDelta(node, update).toByteArray();
-				byte[] signature;
-				synchronized(ServiceCoordinator.this.authority) {
-					try {
-						ServiceCoordinator.this.authority.update(payload);
-						signature = ServiceCoordinator.this.authority.sign();
-					} catch (Exception e) {
-						e.printStackTrace();
-						return;
-					}
-				}
-				String pb = Base64.encode(payload);
-				String db = Base64.encode(signature);
+	/**
+	 * Queue the removal of a record to be relayed to partners in the next
+	 * bundle.
+	 */
+	public void remove(DirectoryRecord node) {
+		queue(new RecordDelta(node, RecordDelta.TYPE.REMOVE));
+	}
 
-				for (URL u : ServiceCoordinator.this.partners) {
-					try {
-						HttpURLConnection conn = (HttpURLConnection)u.openConnection();
-						conn.addRequestProperty("p", pb);
-						conn.addRequestProperty("d", db);
-						conn.getContent();
-					} catch (IOException e) {
-						e.printStackTrace();
-						continue;
-					}
-				}
+	private void queue(RecordDelta d) {
+		boolean full;
+		synchronized (this.pending) {
+			this.pending.add(d);
+			full = this.pending.size() >= BUNDLE_SIZE;
+		}
+		if (full) {
+			this.flush();
+		}
+	}
+
+	/**
+	 * Sign the queued changes as one bundle and queue it for every partner.
+	 */
+	void flush() {
+		List<RecordDelta> deltas;
+		synchronized (this.pending) {
+			if (this.pending.isEmpty()) {
+				return;
 			}
-		};
-		this.executor.execute(task);
+			deltas = new ArrayList<RecordDelta>(this.pending);
+			this.pending.clear();
+		}
+		long start = System.nanoTime();
+		byte[] payload = DeltaBundle.encode(deltas);
+		byte[] signature;
+		try {
+			signature = this.authority.sign(payload);
+		} catch (Exception e) {
+			e.printStackTrace();
+			return;
+		}
+		byte[] message = DeltaBundle.wrap(payload, signature);
+		for (PartnerOutbox outbox : this.outboxes) {
+			outbox.offer(message);
+		}
+		BUNDLES.incrementAndGet();
+		DELTAS.addAndGet(deltas.size());
+		FLUSH_LATENCY.recordSince(start);
 	}
 }
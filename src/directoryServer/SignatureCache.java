@@ -0,0 +1,164 @@
+package directoryServer;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bouncycastle.util.encoders.Base64;
+
+/**
+ * Public keys already decoded, and signatures already found to be valid, so
+ * that nodes sending the same key and signed record again, as they do on
+ * every restart, are not decoded and verified again.
+ *
+ * Both are kept in bounded maps that drop the least recently used entries.
+ * A valid signature is remembered by a hash of the key, the signed bytes and
+ * the signature together, so it only matches that exact payload.
+ */
+final class SignatureCache {
+    private static final String ALGORITHM = "SHA1withRSA";
+    private static final String KEY_ALGORITHM = "RSA";
+    private static final String KEY_FORMAT = "X.509";
+    private static final int KEYS = Integer.getInteger("directory.cache.keys", 16 * 1024);
+    private static final int VERIFIED = Integer.getInteger("directory.cache.verified",
+            64 * 1024);
+
+    private static final AtomicLong HITS = Metrics.counter("verify.cached");
+    private static final Histogram VERIFY_LATENCY = Metrics.histogram("verify.rsa");
+
+    private static final Map<String, PublicKey> keys = lru(KEYS);
+    private static final Map<ByteBuffer, Boolean> verified = lru(VERIFIED);
+    // Hashes payloads to look them up in verified.
+    private static final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-1");
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    private SignatureCache() {
+    }
+
+    private static <K, V> Map<K, V> lru(final int size) {
+        return Collections.synchronizedMap(new LinkedHashMap<K, V>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return size() > size;
+            }
+        });
+    }
+
+    /**
+     * Decode a public key as registrations carry it: the algorithm, format
+     * and Base64 encoded key, separated by colons.
+     *
+     * @return The key, or null if it is not an RSA key in X.509 form.
+     */
+    static PublicKey publicKey(String key) {
+        if (key == null || key.length() < 1) {
+            return null;
+        }
+        PublicKey decoded = keys.get(key);
+        if (decoded != null) {
+            return decoded;
+        }
+        byte[] encoded = encodedKey(key);
+        if (encoded == null) {
+            return null;
+        }
+        try {
+            decoded = KeyFactory.getInstance(KEY_ALGORITHM).generatePublic(
+                    new X509EncodedKeySpec(encoded));
+        } catch (GeneralSecurityException e) {
+            return null;
+        }
+        keys.put(key, decoded);
+        return decoded;
+    }
+
+    /**
+     * The X.509 encoding of a public key as registrations carry it, without
+     * checking that it is a valid key.
+     *
+     * @return The encoded key, or null if it is not an RSA key in X.509 form
+     *         or is not Base64.
+     */
+    static byte[] encodedKey(String key) {
+        if (key == null) {
+            return null;
+        }
+        String[] parts = key.split(":");
+        if (parts.length != 3 || !parts[0].equals(KEY_ALGORITHM)
+                || !parts[1].equals(KEY_FORMAT)) {
+            return null;
+        }
+        try {
+            return Base64.decode(parts[2]);
+        } catch (RuntimeException e) {
+            // Not Base64.
+            return null;
+        }
+    }
+
+    /**
+     * Verify a signature, unless the same key, data and signature have been
+     * verified before.
+     *
+     * @param key
+     *            The key as the record carries it.
+     * @param publicKey
+     *            The key, decoded.
+     */
+    static boolean verify(String key, PublicKey publicKey, byte[] data, byte[] signature)
+            throws GeneralSecurityException {
+        ByteBuffer payload = ByteBuffer.wrap(payloadHash(key, data, signature));
+        if (verified.containsKey(payload)) {
+            HITS.incrementAndGet();
+            return true;
+        }
+
+        long start = System.nanoTime();
+        Signature verifier = Signature.getInstance(ALGORITHM);
+        verifier.initVerify(publicKey);
+        verifier.update(data);
+        boolean valid = verifier.verify(signature);
+        VERIFY_LATENCY.recordSince(start);
+        if (valid) {
+            verified.put(payload, Boolean.TRUE);
+        }
+        return valid;
+    }
+
+    private static byte[] payloadHash(String key, byte[] data, byte[] signature) {
+        MessageDigest digest = digests.get();
+        byte[] keyBytes;
+        try {
+            keyBytes = key.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        // Each part is prefixed with its length, so that moving bytes from
+        // one part to the next gives a different hash.
+        digest.update(ByteBuffer.allocate(12).putInt(keyBytes.length).putInt(data.length)
+                .putInt(signature.length).array());
+        digest.update(keyBytes);
+        digest.update(data);
+        digest.update(signature);
+        return digest.digest();
+    }
+}
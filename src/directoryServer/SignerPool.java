@@ -0,0 +1,159 @@
+package directoryServer;
+
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of Signature objects initialized with the directory's
+ * private key. A Signature can only be used by one thread at a time, so
+ * keeping several lets responses be signed on as many cores as there are
+ * signers.
+ */
+public class SignerPool {
+    private static final String ALGORITHM = "SHA1withRSA";
+    // Signs a hash computed elsewhere, padded as ALGORITHM would pad it.
+    private static final String RAW_ALGORITHM = "NONEwithRSA";
+    private static final String DIGEST_ALGORITHM = "SHA-1";
+    private static final Histogram SIGN_LATENCY = Metrics.histogram("signer.sign");
+    // The DER encoded DigestInfo header that precedes a SHA-1 hash.
+    private static final byte[] SHA1_DIGEST_INFO = { 0x30, 0x21, 0x30, 0x09, 0x06, 0x05, 0x2b,
+            0x0e, 0x03, 0x02, 0x1a, 0x05, 0x00, 0x04, 0x14 };
+
+    private final PrivateKey key;
+    private final BlockingQueue<Signature> signers;
+    private final BlockingQueue<Signature> rawSigners;
+
+    // Statistics on how long callers wait for a free signer.
+    private final AtomicLong signatures = new AtomicLong();
+    private final AtomicLong contended = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+
+    public SignerPool(PrivateKey key, int size) throws NoSuchAlgorithmException,
+            InvalidKeyException {
+        this.key = key;
+        this.signers = new ArrayBlockingQueue<Signature>(size);
+        this.rawSigners = new ArrayBlockingQueue<Signature>(size);
+        for (int i = 0; i < size; i++) {
+            Signature signer = Signature.getInstance(ALGORITHM);
+            signer.initSign(key);
+            signers.add(signer);
+            signer = Signature.getInstance(RAW_ALGORITHM);
+            signer.initSign(key);
+            rawSigners.add(signer);
+        }
+    }
+
+    /**
+     * Sign a message, waiting for a signer to become free if all are in use.
+     *
+     * @param data
+     *            The message to sign.
+     * @return The signature of the message.
+     */
+    public byte[] sign(byte[] data) throws SignatureException {
+        return sign(data, 0, data.length);
+    }
+
+    /**
+     * Sign part of an array.
+     *
+     * @see #sign(byte[])
+     */
+    public byte[] sign(byte[] data, int off, int len) throws SignatureException {
+        long start = System.nanoTime();
+        Signature signer = acquire(signers);
+        try {
+            signer.update(data, off, len);
+            return signer.sign();
+        } catch (SignatureException e) {
+            reset(signer);
+            throw e;
+        } finally {
+            signers.offer(signer);
+            SIGN_LATENCY.recordSince(start);
+        }
+    }
+
+    /**
+     * Start hashing a message that is too large to hold in memory, to be
+     * signed with signDigest once all of it has been hashed. No signer is
+     * held while hashing.
+     */
+    public MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Sign a message given its hash from newDigest. The signature is the
+     * same as sign would give for the whole message.
+     */
+    public byte[] signDigest(byte[] hash) throws SignatureException {
+        long start = System.nanoTime();
+        Signature signer = acquire(rawSigners);
+        try {
+            signer.update(SHA1_DIGEST_INFO);
+            signer.update(hash);
+            return signer.sign();
+        } catch (SignatureException e) {
+            reset(signer);
+            throw e;
+        } finally {
+            rawSigners.offer(signer);
+            SIGN_LATENCY.recordSince(start);
+        }
+    }
+
+    private Signature acquire(BlockingQueue<Signature> pool) throws SignatureException {
+        Signature signer = pool.poll();
+        if (signer == null) {
+            long start = System.nanoTime();
+            try {
+                signer = pool.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SignatureException("Interrupted waiting for a signer.");
+            }
+            contended.incrementAndGet();
+            waitNanos.addAndGet(System.nanoTime() - start);
+        }
+        signatures.incrementAndGet();
+        return signer;
+    }
+
+    /**
+     * Start a signer over rather than returning it in an unknown state.
+     */
+    private void reset(Signature signer) {
+        try {
+            signer.initSign(key);
+        } catch (InvalidKeyException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /** The number of messages signed. */
+    public long getSignatures() {
+        return signatures.get();
+    }
+
+    /** The number of signatures that had to wait for a free signer. */
+    public long getContended() {
+        return contended.get();
+    }
+
+    /** The total time spent waiting for a free signer, in nanoseconds. */
+    public long getWaitNanos() {
+        return waitNanos.get();
+    }
+}
@@ -0,0 +1,71 @@
+package directoryServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.SignatureException;
+
+import org.bouncycastle.util.encoders.Base64;
+
+/**
+ * Sends a response containing the digest placeholder while it is being
+ * written, hashing it along the way, and replaces the placeholder with the
+ * signature once the response is finished. This lets a listing of any size
+ * be signed without holding it all in memory.
+ *
+ * The placeholder is always written near the end, so only the last few
+ * kilobytes are held back until the signature is known.
+ */
+class SigningOutputStream extends OutputStream {
+    // Bytes always held back, enough to cover the placeholder and what
+    // follows it.
+    private static final int KEEP = 4 * 1024;
+
+    private final OutputStream out;
+    private final MessageDigest digest;
+    private final byte[] tail = new byte[2 * KEEP];
+    private int tailLength;
+
+    SigningOutputStream(OutputStream out, MessageDigest digest) {
+        this.out = out;
+        this.digest = digest;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        digest.update(b, off, len);
+        if (tailLength + len > tail.length) {
+            // Send the oldest bytes, keeping only the last KEEP.
+            int overflow = tailLength + len - KEEP;
+            int fromTail = Math.min(overflow, tailLength);
+            out.write(tail, 0, fromTail);
+            System.arraycopy(tail, fromTail, tail, 0, tailLength - fromTail);
+            tailLength -= fromTail;
+            int fromInput = overflow - fromTail;
+            out.write(b, off, fromInput);
+            off += fromInput;
+            len -= fromInput;
+        }
+        System.arraycopy(b, off, tail, tailLength, len);
+        tailLength += len;
+    }
+
+    /**
+     * Sign what has been written, and send the rest of it with the
+     * signature in place of the placeholder.
+     */
+    void finish(SignerPool authority) throws SignatureException, IOException {
+        byte[] signature = Base64.encode(authority.signDigest(digest.digest()));
+        int pos = DirectorySnapshot.placeholder(tail, tailLength);
+        int remainder = pos + DirectorySnapshot.PLACEHOLDER.length;
+        out.write(tail, 0, pos);
+        out.write(signature);
+        out.write(tail, remainder, tailLength - remainder);
+        out.flush();
+    }
+}
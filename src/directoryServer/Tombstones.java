@@ -0,0 +1,118 @@
+package directoryServer;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records removed from the directory, remembered for a while so that a
+ * partner still holding one can be told it is gone instead of sending it
+ * back.
+ *
+ * A removal is kept as the serviceId and createdTime of the record removed.
+ * It supersedes that record and any older one for the serviceId, but not
+ * one registered since. Removals are spread over the same buckets as the
+ * Merkle digest, so anti-entropy can send those in a bucket with its
+ * records, and each bucket keeps them in the order they were made, so the
+ * oldest are dropped from the front.
+ */
+class Tombstones {
+    private static class Removal {
+        final long createdTime;
+        final long removedAt;
+
+        Removal(long createdTime, long removedAt) {
+            this.createdTime = createdTime;
+            this.removedAt = removedAt;
+        }
+    }
+
+    private final List<Map<Long, Removal>> buckets;
+
+    Tombstones() {
+        buckets = new ArrayList<Map<Long, Removal>>(MerkleDigest.LEAVES);
+        for (int i = 0; i < MerkleDigest.LEAVES; i++) {
+            buckets.add(new LinkedHashMap<Long, Removal>());
+        }
+    }
+
+    /**
+     * Note the removal of the record of a serviceId created at a time.
+     */
+    void add(long serviceId, long createdTime, long now) {
+        Map<Long, Removal> bucket = buckets.get(MerkleDigest.bucketOf(serviceId));
+        synchronized (bucket) {
+            Removal old = bucket.remove(serviceId);
+            if (old != null && old.createdTime > createdTime) {
+                createdTime = old.createdTime;
+            }
+            bucket.put(serviceId, new Removal(createdTime, now));
+        }
+    }
+
+    /**
+     * Whether the record of a serviceId created at a time, or a newer one,
+     * has been removed.
+     */
+    boolean covers(long serviceId, long createdTime) {
+        Map<Long, Removal> bucket = buckets.get(MerkleDigest.bucketOf(serviceId));
+        synchronized (bucket) {
+            Removal removal = bucket.get(serviceId);
+            return removal != null && removal.createdTime >= createdTime;
+        }
+    }
+
+    /**
+     * Forget the removal for a serviceId, which has been registered again.
+     */
+    void forget(long serviceId) {
+        Map<Long, Removal> bucket = buckets.get(MerkleDigest.bucketOf(serviceId));
+        synchronized (bucket) {
+            bucket.remove(serviceId);
+        }
+    }
+
+    /**
+     * The removals in a bucket, as deltas.
+     */
+    List<RecordDelta> bucket(int b) {
+        Map<Long, Removal> bucket = buckets.get(b);
+        synchronized (bucket) {
+            List<RecordDelta> deltas = new ArrayList<RecordDelta>(bucket.size());
+            for (Map.Entry<Long, Removal> entry : bucket.entrySet()) {
+                deltas.add(new RecordDelta(entry.getKey(), entry.getValue().createdTime));
+            }
+            return deltas;
+        }
+    }
+
+    /**
+     * Drop the removals made before a time.
+     */
+    void expire(long before) {
+        for (Map<Long, Removal> bucket : buckets) {
+            synchronized (bucket) {
+                Iterator<Removal> removals = bucket.values().iterator();
+                while (removals.hasNext()) {
+                    if (removals.next().removedAt >= before) {
+                        break;
+                    }
+                    removals.remove();
+                }
+            }
+        }
+    }
+
+    /** The number of removals remembered. */
+    int size() {
+        int size = 0;
+        for (Map<Long, Removal> bucket : buckets) {
+            synchronized (bucket) {
+                size += bucket.size();
+            }
+        }
+        return size;
+    }
+}
@@ -0,0 +1,142 @@
+package directoryServer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.washington.cs.oneswarm.f2f.xml.XMLHelper;
+
+/**
+ * Registrations, check-ins, removals and expiry run together on a few
+ * serviceIds, so most changes race with another to the same record.
+ * Afterwards the map, the listing, the indexes, the Merkle digest and the
+ * expiry index must all agree.
+ */
+public class DirectoryDBConcurrencyTest {
+    private static final int THREADS = 8;
+    private static final int SERVICES = 32;
+    private static final int OPERATIONS = 20000;
+
+    private DirectoryDB db;
+    private final List<DirectoryRecord> signed = new ArrayList<DirectoryRecord>();
+
+    @Before
+    public void setUp() throws Exception {
+        TestFixtures.clearDatabase();
+        db = new DirectoryDB(TestFixtures.signerPool(), TestFixtures.verifier());
+        for (int i = 1; i <= SERVICES; i++) {
+            signed.add(i % 4 == 0 ? TestFixtures.service(i) : TestFixtures.exitNode(i));
+        }
+    }
+
+    @After
+    public void tearDown() {
+        TestFixtures.clearDatabase();
+    }
+
+    @Test
+    public void racingChangesLeaveTheIndexesConsistent() throws Exception {
+        ExecutorService threads = Executors.newFixedThreadPool(THREADS);
+        List<Future<Void>> done = new ArrayList<Future<Void>>();
+        for (int t = 0; t < THREADS; t++) {
+            final Random random = new Random(t);
+            done.add(threads.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    XMLHelper xmlOut = new XMLHelper(new NullOutputStream());
+                    for (int i = 0; i < OPERATIONS; i++) {
+                        DirectoryRecord record = signed.get(random.nextInt(SERVICES));
+                        int operation = random.nextInt(10);
+                        if (operation < 4) {
+                            db.merge(new RecordDelta(TestFixtures.copy(record), false));
+                        } else if (operation < 7) {
+                            DirectoryRecord registered = db.get(record.serviceId);
+                            if (registered != null) {
+                                db.checkIn(registered, xmlOut);
+                            }
+                        } else if (operation < 8) {
+                            DirectoryRecord registered = db.get(record.serviceId);
+                            if (registered != null) {
+                                db.merge(new RecordDelta(registered, RecordDelta.TYPE.REMOVE));
+                            }
+                        } else if (operation < 9) {
+                            db.flushHeartbeats();
+                        } else {
+                            // Everything registered so far has expired.
+                            db.clean(System.currentTimeMillis() + 2L * DirectoryDB.MAX_AGE);
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> thread : done) {
+            thread.get();
+        }
+        threads.shutdown();
+
+        // Leave a record registered for every serviceId, newer than any
+        // removed, then expire them.
+        Thread.sleep(2);
+        for (DirectoryRecord record : signed) {
+            db.merge(new RecordDelta(TestFixtures.copy(record), false));
+        }
+        db.flushHeartbeats();
+        assertEquals(SERVICES, assertConsistent().size());
+        db.clean(System.currentTimeMillis() + 2L * DirectoryDB.MAX_AGE);
+        assertEquals("Records missing from the expiry index", 0, assertConsistent().size());
+    }
+
+    /**
+     * Check that every view of the records holds the records in the map.
+     *
+     * @return The registered records.
+     */
+    private Set<DirectoryRecord> assertConsistent() {
+        Set<DirectoryRecord> registered = Collections
+                .newSetFromMap(new IdentityHashMap<DirectoryRecord, Boolean>());
+        for (DirectoryRecord record : signed) {
+            DirectoryRecord current = db.get(record.serviceId);
+            if (current != null) {
+                registered.add(current);
+            }
+        }
+
+        assertSameRecords("listing", registered, db.liveListing().records);
+        assertSameRecords("index", registered, db.select(new ListingQuery(null, 0, null, null)));
+        List<DirectoryRecord> digested = new ArrayList<DirectoryRecord>();
+        for (int b = 0; b < MerkleDigest.LEAVES; b++) {
+            digested.addAll(db.getDigest().bucket(b));
+        }
+        assertSameRecords("digest", registered, digested);
+        return registered;
+    }
+
+    private static void assertSameRecords(String view, Set<DirectoryRecord> expected,
+            Iterable<DirectoryRecord> actual) {
+        Map<Long, DirectoryRecord> seen = new HashMap<Long, DirectoryRecord>();
+        for (DirectoryRecord record : actual) {
+            assertTrue("Replaced record left in the " + view, expected.contains(record));
+            assertTrue("Record listed twice in the " + view,
+                    seen.put(record.serviceId, record) == null);
+        }
+        assertEquals("Records missing from the " + view, expected.size(), seen.size());
+    }
+}
@@ -0,0 +1,72 @@
+package directoryServer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Records written to the database file and journal must come back when the
+ * server restarts, however many times it does.
+ */
+public class DirectoryDBPersistenceTest {
+    private static final int RECORDS = 5;
+    private static final long MINUTE = 60 * 1000;
+
+    private final List<DirectoryRecord> records = new ArrayList<DirectoryRecord>();
+
+    @Before
+    public void setUp() throws Exception {
+        TestFixtures.clearDatabase();
+        // Registered well before the test, so times reset on loading show.
+        long now = System.currentTimeMillis();
+        for (int i = 1; i <= RECORDS; i++) {
+            DirectoryRecord record = i % 2 == 0 ? TestFixtures.service(i) : TestFixtures
+                    .exitNode(i);
+            record.createdTime = now - 60 * MINUTE - i;
+            record.lastCheckinTime = now - MINUTE - i;
+            records.add(record);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        TestFixtures.clearDatabase();
+    }
+
+    @Test
+    public void recordsSurviveCompactionAndReload() throws Exception {
+        DirectoryDB db = open();
+        for (DirectoryRecord record : records) {
+            db.merge(new RecordDelta(record, false));
+        }
+        // Written to the database file by compaction on the first restart,
+        // then read back from it on the second and third.
+        for (int restart = 0; restart < 3; restart++) {
+            db = open();
+            assertRecords(db);
+        }
+    }
+
+    private static DirectoryDB open() throws Exception {
+        return new DirectoryDB(TestFixtures.signerPool(), TestFixtures.verifier());
+    }
+
+    private void assertRecords(DirectoryDB db) {
+        assertEquals(RECORDS, db.liveListing().records.size());
+        for (DirectoryRecord record : records) {
+            DirectoryRecord loaded = db.get(record.serviceId);
+            assertNotNull("Lost record " + record.serviceId, loaded);
+            assertEquals(record.type(), loaded.type());
+            assertEquals(record.nickname, loaded.nickname);
+            assertEquals(record.publicKey, loaded.publicKey);
+            assertEquals(record.createdTime, loaded.createdTime);
+            assertEquals(record.lastCheckinTime, loaded.lastCheckinTime);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package directoryServer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.security.Signature;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.washington.cs.oneswarm.f2f.xml.XMLHelper;
+
+public class DirectoryDBTest {
+    private DirectoryDB db;
+
+    @Before
+    public void setUp() throws Exception {
+        TestFixtures.clearDatabase();
+        db = new DirectoryDB(TestFixtures.signerPool(), TestFixtures.verifier());
+    }
+
+    @After
+    public void tearDown() {
+        TestFixtures.clearDatabase();
+    }
+
+    @Test
+    public void checkInsAreJournaledWithoutStartingAGeneration() throws Exception {
+        DirectoryRecord record = TestFixtures.exitNode(1);
+        record.createdTime -= 60 * 1000;
+        record.lastCheckinTime = record.createdTime;
+        db.merge(new RecordDelta(record, false));
+        long generation = db.generation();
+
+        Thread.sleep(2);
+        db.checkIn(db.get(1), new XMLHelper(new NullOutputStream()));
+        db.flushHeartbeats();
+        long checkedIn = db.get(1).lastCheckinTime;
+
+        assertEquals(generation, db.generation());
+        assertTrue(db.listingSince(generation).records.isEmpty());
+        // The check-in time is still kept across a restart.
+        db = new DirectoryDB(TestFixtures.signerPool(), TestFixtures.verifier());
+        assertEquals(checkedIn, db.get(1).lastCheckinTime);
+    }
+
+    @Test
+    public void heartbeatsCannotBeReplayedAfterARestart() throws Exception {
+        DirectoryRecord record = TestFixtures.exitNode(1);
+        db.merge(new RecordDelta(record, false));
+        HeartbeatBatch.Heartbeat heartbeat = heartbeat(1, System.currentTimeMillis());
+        assertEquals(HeartbeatBatch.ACCEPTED, db.checkIn(heartbeat));
+        assertEquals(HeartbeatBatch.STALE, db.checkIn(heartbeat));
+        db.flushHeartbeats();
+
+        db = new DirectoryDB(TestFixtures.signerPool(), TestFixtures.verifier());
+        assertEquals(HeartbeatBatch.STALE, db.checkIn(heartbeat));
+        // Nor once the record has been registered again.
+        db.merge(new RecordDelta(TestFixtures.copy(record), false));
+        assertEquals(HeartbeatBatch.STALE, db.checkIn(heartbeat));
+        assertEquals(HeartbeatBatch.ACCEPTED, db.checkIn(heartbeat(1, heartbeat.timestamp + 1)));
+    }
+
+    private static HeartbeatBatch.Heartbeat heartbeat(long serviceId, long timestamp)
+            throws Exception {
+        Signature signer = Signature.getInstance("SHA1withRSA");
+        signer.initSign(TestFixtures.NODE_KEY.getPrivate());
+        signer.update(HeartbeatBatch.signedBytes(serviceId, timestamp));
+        return new HeartbeatBatch.Heartbeat(serviceId, timestamp, signer.sign());
+    }
+
+    @Test
+    public void removedRecordsAreNotMergedBack() throws Exception {
+        DirectoryRecord record = TestFixtures.exitNode(1);
+        db.merge(new RecordDelta(TestFixtures.copy(record), false));
+        DirectoryRecord registered = db.get(1);
+        db.clean(registered.lastCheckinTime + 2L * DirectoryDB.MAX_AGE);
+        assertNull(db.get(1));
+
+        // A partner that has not expired it yet sends it back.
+        assertFalse(db.merge(new RecordDelta(registered, false)));
+        assertNull(db.get(1));
+        // The removal is kept across a restart, which compacts the journal.
+        db = new DirectoryDB(TestFixtures.signerPool(), TestFixtures.verifier());
+        assertFalse(db.merge(new RecordDelta(registered, false)));
+        assertNull(db.get(1));
+
+        // A later registration is not held back, and is not removed by the
+        // removal of the earlier one.
+        Thread.sleep(2);
+        DirectoryRecord renewed = TestFixtures.copy(record);
+        assertTrue(db.merge(new RecordDelta(renewed, false)));
+        assertFalse(db.merge(new RecordDelta(registered, RecordDelta.TYPE.REMOVE)));
+        assertSame(renewed, db.get(1));
+    }
+}
@@ -0,0 +1,35 @@
+package directoryServer;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class DirectoryRecordTest {
+
+    @Test
+    public void laterRegistrationSupersedes() throws Exception {
+        DirectoryRecord older = TestFixtures.exitNode(1);
+        DirectoryRecord newer = TestFixtures.exitNode(1);
+        newer.createdTime = older.createdTime + 1;
+        newer.signature[0]++;
+
+        assertTrue(newer.supersedes(older));
+        assertFalse(older.supersedes(newer));
+    }
+
+    @Test
+    public void simultaneousRegistrationsPickTheSameWinner() throws Exception {
+        DirectoryRecord a = TestFixtures.exitNode(1);
+        DirectoryRecord b = TestFixtures.copy(a);
+        b.createdTime = a.createdTime;
+        b.signature = a.signature.clone();
+        b.signature[b.signature.length - 1] ^= (byte) 0x80;
+
+        assertTrue("Exactly one must win", a.supersedes(b) != b.supersedes(a));
+
+        DirectoryRecord same = TestFixtures.copy(a);
+        same.createdTime = a.createdTime;
+        assertFalse(a.supersedes(same));
+    }
+}
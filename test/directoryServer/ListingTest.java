@@ -0,0 +1,102 @@
+package directoryServer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.bouncycastle.util.encoders.Base64;
+import org.junit.Test;
+
+/**
+ * The binary listing must hold the same records as the JSON one, which is
+ * written from the same fields as the XML one.
+ */
+public class ListingTest {
+
+    @Test
+    public void binaryListingMatchesJSON() throws Exception {
+        List<DirectoryRecord> records = new ArrayList<DirectoryRecord>();
+        for (int i = 1; i <= 6; i++) {
+            records.add(i % 3 == 0 ? TestFixtures.service(i) : TestFixtures.exitNode(i));
+        }
+        Listing listing = new Listing(42, 17, records, Arrays.asList(7L, 8L), "123.4");
+
+        ByteArrayOutputStream binary = new ByteArrayOutputStream();
+        listing.writeBinary(binary);
+        Listing decoded = readBinary(binary.toByteArray());
+
+        assertEquals(records.size(), decoded.records.size());
+        assertEquals(json(listing), json(decoded));
+    }
+
+    private static String json(Listing listing) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        listing.writeJSON(out);
+        return out.toString("UTF-8");
+    }
+
+    /**
+     * Read a binary listing as described in Listing.
+     */
+    private static Listing readBinary(byte[] bytes) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        long generation = in.readLong();
+        long deltaFrom = in.readLong();
+        List<String> words = new ArrayList<String>();
+        for (int i = readVarInt(in); i > 0; i--) {
+            words.add(new String(readBytes(in), "UTF-8"));
+        }
+
+        List<DirectoryRecord> records = new ArrayList<DirectoryRecord>();
+        for (int i = readVarInt(in); i > 0; i--) {
+            byte kind = in.readByte();
+            DirectoryRecord record = kind == 1 ? new ProxyDirectoryRecord()
+                    : new PortDirectoryRecord();
+            record.serviceId = in.readLong();
+            record.publicKey = "RSA:X.509:" + new String(Base64.encode(readBytes(in)), "US-ASCII");
+            record.nickname = new String(readBytes(in), "UTF-8");
+            record.signature = readBytes(in);
+            if (kind == 1) {
+                ProxyDirectoryRecord proxy = (ProxyDirectoryRecord) record;
+                proxy.bandwidth = readVarInt(in);
+                proxy.exitPolicy = words.get(readVarInt(in));
+                proxy.version = words.get(readVarInt(in));
+            }
+            // The key must be one the directory would accept.
+            assertTrue(SignatureCache.publicKey(record.publicKey) != null);
+            records.add(record);
+        }
+        List<Long> removed = new ArrayList<Long>();
+        for (int i = readVarInt(in); i > 0; i--) {
+            removed.add(in.readLong());
+        }
+        byte[] next = readBytes(in);
+        assertEquals(-1, in.read());
+        return new Listing(generation, deltaFrom, records, removed, next.length == 0 ? null
+                : new String(next, "UTF-8"));
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] b = new byte[readVarInt(in)];
+        in.readFully(b);
+        return b;
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0;; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+}
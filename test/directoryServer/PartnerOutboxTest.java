@@ -0,0 +1,106 @@
+package directoryServer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mortbay.jetty.Request;
+import org.mortbay.jetty.Server;
+import org.mortbay.jetty.handler.AbstractHandler;
+import org.mortbay.jetty.nio.SelectChannelConnector;
+
+/**
+ * Bundles queued for a partner are sent after a restart, in order, and
+ * bundles already delivered are not sent again.
+ */
+public class PartnerOutboxTest {
+    private static final File OUTBOX = new File("test.outbox");
+    private static final int BUNDLES = 6;
+    private static final int BUNDLE_SIZE = 60;
+
+    private Server partner;
+    private URL url;
+    // Bundles the partner has received, and how many more it will refuse.
+    private final List<byte[]> received = new ArrayList<byte[]>();
+    private int failures = 2;
+
+    @Before
+    public void setUp() throws Exception {
+        OUTBOX.delete();
+        partner = new Server();
+        SelectChannelConnector connector = new SelectChannelConnector();
+        connector.setHost("127.0.0.1");
+        connector.setPort(0);
+        partner.addConnector(connector);
+        partner.addHandler(new AbstractHandler() {
+            @Override
+            public void handle(String target, HttpServletRequest req, HttpServletResponse resp,
+                    int dispatch) throws IOException {
+                ((Request) req).setHandled(true);
+                byte[] body = IOUtils.toByteArray(req.getInputStream());
+                synchronized (received) {
+                    if (failures > 0) {
+                        failures--;
+                        resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                        return;
+                    }
+                    received.add(body);
+                }
+            }
+        });
+        partner.start();
+        url = new URL("http://127.0.0.1:" + connector.getLocalPort() + "/coord");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        partner.stop();
+        OUTBOX.delete();
+    }
+
+    @Test
+    public void queuedBundlesSurviveARestart() throws Exception {
+        // Some bundles are held in memory and the rest only in the file.
+        PartnerOutbox outbox = new PartnerOutbox(url, OUTBOX, 3 * BUNDLE_SIZE);
+        List<byte[]> bundles = new ArrayList<byte[]>();
+        for (int i = 0; i < BUNDLES; i++) {
+            byte[] bundle = new byte[BUNDLE_SIZE];
+            bundle[0] = (byte) i;
+            bundles.add(bundle);
+            outbox.offer(bundle);
+        }
+        assertEquals(3 * BUNDLE_SIZE, outbox.memoryBytes());
+
+        // Restarted before anything was sent.
+        outbox = new PartnerOutbox(url, OUTBOX, 3 * BUNDLE_SIZE);
+        assertEquals(0, outbox.memoryBytes());
+        assertEquals(BUNDLES * (4 + BUNDLE_SIZE), outbox.spilledBytes());
+        outbox.start();
+        long deadline = System.currentTimeMillis() + 30 * 1000;
+        while (outbox.spilledBytes() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        synchronized (received) {
+            assertEquals(BUNDLES, received.size());
+            for (int i = 0; i < BUNDLES; i++) {
+                assertArrayEquals(bundles.get(i), received.get(i));
+            }
+        }
+
+        // Restarted after everything was sent.
+        outbox = new PartnerOutbox(url, OUTBOX, 3 * BUNDLE_SIZE);
+        assertEquals(0, outbox.spilledBytes());
+    }
+}
@@ -0,0 +1,113 @@
+package directoryServer;
+
+import java.io.File;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.security.Signature;
+
+import org.bouncycastle.util.encoders.Base64;
+
+/**
+ * Keys and records shared by the tests.
+ */
+class TestFixtures {
+    // Same size as the keys nodes register with, and as the server's own.
+    private static final int KEY_SIZE = 1024;
+
+    static final KeyPair NODE_KEY = generateKey();
+    static final String PUBLIC_KEY = NODE_KEY.getPublic().getAlgorithm() + ":"
+            + NODE_KEY.getPublic().getFormat() + ":"
+            + new String(Base64.encode(NODE_KEY.getPublic().getEncoded()));
+    static final KeyPair SERVER_KEY = generateKey();
+
+    private TestFixtures() {
+    }
+
+    static KeyPair generateKey() {
+        try {
+            KeyPairGenerator keygen = KeyPairGenerator.getInstance("RSA");
+            keygen.initialize(KEY_SIZE, new SecureRandom());
+            return keygen.generateKeyPair();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * An exit node signed with NODE_KEY.
+     */
+    static ProxyDirectoryRecord exitNode(long serviceId) throws GeneralSecurityException {
+        ProxyDirectoryRecord record = new ProxyDirectoryRecord();
+        record.serviceId = serviceId;
+        record.publicKey = PUBLIC_KEY;
+        record.nickname = "node" + serviceId;
+        record.bandwidth = 100 + (int) (serviceId % 1000);
+        record.exitPolicy = "allow *:80,allow *:443";
+        record.version = "0.7." + (serviceId % 4);
+        record.signature = sign(record);
+        return record;
+    }
+
+    /**
+     * A service signed with NODE_KEY.
+     */
+    static PortDirectoryRecord service(long serviceId) throws GeneralSecurityException {
+        PortDirectoryRecord record = new PortDirectoryRecord();
+        record.serviceId = serviceId;
+        record.publicKey = PUBLIC_KEY;
+        record.nickname = "service" + serviceId;
+        record.signature = sign(record);
+        return record;
+    }
+
+    /**
+     * A new copy of a record, as a node registering it again would send.
+     */
+    static DirectoryRecord copy(DirectoryRecord record) {
+        DirectoryRecord copy;
+        if (record instanceof ProxyDirectoryRecord) {
+            ProxyDirectoryRecord proxy = (ProxyDirectoryRecord) record;
+            ProxyDirectoryRecord proxyCopy = new ProxyDirectoryRecord();
+            proxyCopy.bandwidth = proxy.bandwidth;
+            proxyCopy.exitPolicy = proxy.exitPolicy;
+            proxyCopy.version = proxy.version;
+            copy = proxyCopy;
+        } else {
+            copy = new PortDirectoryRecord();
+        }
+        copy.serviceId = record.serviceId;
+        copy.publicKey = record.publicKey;
+        copy.nickname = record.nickname;
+        copy.signature = record.signature;
+        return copy;
+    }
+
+    private static byte[] sign(DirectoryRecord record) throws GeneralSecurityException {
+        Signature signer = Signature.getInstance("SHA1withRSA");
+        signer.initSign(NODE_KEY.getPrivate());
+        signer.update(record.hashBase());
+        return signer.sign();
+    }
+
+    static SignerPool signerPool() throws GeneralSecurityException {
+        return new SignerPool(SERVER_KEY.getPrivate(), 2);
+    }
+
+    static Signature verifier() throws GeneralSecurityException {
+        Signature verifier = Signature.getInstance("SHA1withRSA");
+        verifier.initVerify(SERVER_KEY.getPublic());
+        return verifier;
+    }
+
+    /**
+     * Remove the database files DirectoryDB keeps in the working directory,
+     * which the "test" target points at test-work.
+     */
+    static void clearDatabase() {
+        new File(DirectoryDB.DATABASE_FILE).delete();
+        new File(DirectoryDB.JOURNAL_FILE).delete();
+        new File(DirectoryDB.JOURNAL_FILE + ".old").delete();
+    }
+}